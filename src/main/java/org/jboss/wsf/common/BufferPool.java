@@ -0,0 +1,95 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of the byte arrays and direct buffers that IOUtils copies through.
+ *
+ * All buffers have the same size, which is set with -Dorg.jboss.wsf.common.IOUtils.bufferSize
+ * and defaults to 64KB. Up to -Dorg.jboss.wsf.common.IOUtils.maxIdleBuffers buffers of each
+ * kind are retained, buffers that are released to a full pool are left to the garbage collector.
+ */
+final class BufferPool
+{
+   private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+   static final int BUFFER_SIZE = positive(Integer.getInteger("org.jboss.wsf.common.IOUtils.bufferSize", DEFAULT_BUFFER_SIZE), DEFAULT_BUFFER_SIZE);
+
+   private static final int MAX_IDLE = positive(Integer.getInteger("org.jboss.wsf.common.IOUtils.maxIdleBuffers", 2 * Runtime.getRuntime().availableProcessors()), 1);
+
+   // The idle heap buffers
+   private static final BlockingQueue<byte[]> idleArrays = new ArrayBlockingQueue<byte[]>(MAX_IDLE);
+   // The idle direct buffers, which are allocated outside of the heap
+   private static final BlockingQueue<ByteBuffer> idleDirectBuffers = new ArrayBlockingQueue<ByteBuffer>(MAX_IDLE);
+
+   // Hide the constructor
+   private BufferPool()
+   {
+   }
+
+   /** Get a heap buffer of BUFFER_SIZE bytes
+    */
+   static byte[] acquireArray()
+   {
+      byte[] bytes = idleArrays.poll();
+      return (bytes != null ? bytes : new byte[BUFFER_SIZE]);
+   }
+
+   /** Hand back a buffer that was obtained from acquireArray()
+    */
+   static void release(byte[] bytes)
+   {
+      if (bytes.length == BUFFER_SIZE)
+         idleArrays.offer(bytes);
+   }
+
+   /** Get a cleared direct buffer of BUFFER_SIZE bytes
+    */
+   static ByteBuffer acquireDirectBuffer()
+   {
+      ByteBuffer buffer = idleDirectBuffers.poll();
+      if (buffer == null)
+         return ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+      buffer.clear();
+      return buffer;
+   }
+
+   /** Hand back a buffer that was obtained from acquireDirectBuffer()
+    */
+   static void release(ByteBuffer buffer)
+   {
+      if (buffer.isDirect() && buffer.capacity() == BUFFER_SIZE)
+         idleDirectBuffers.offer(buffer);
+   }
+
+   private static int positive(int value, int defaultValue)
+   {
+      return (value > 0 ? value : defaultValue);
+   }
+}
@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * A Reader over a CharSequence that does not copy the sequence.
+ *
+ * The sequence must not be modified while it is read.
+ */
+final class CharSequenceReader extends Reader
+{
+   private final CharSequence chars;
+   private final int length;
+   private int pos;
+   private int mark;
+
+   CharSequenceReader(CharSequence chars)
+   {
+      this.chars = chars;
+      this.length = chars.length();
+   }
+
+   public int read()
+   {
+      return (pos < length ? chars.charAt(pos++) : -1);
+   }
+
+   public int read(char[] cbuf, int off, int len)
+   {
+      if (len == 0)
+         return 0;
+      if (pos >= length)
+         return -1;
+
+      int count = Math.min(len, length - pos);
+      int end = pos + count;
+      if (chars instanceof String)
+      {
+         ((String)chars).getChars(pos, end, cbuf, off);
+      }
+      else if (chars instanceof StringBuilder)
+      {
+         ((StringBuilder)chars).getChars(pos, end, cbuf, off);
+      }
+      else if (chars instanceof StringBuffer)
+      {
+         ((StringBuffer)chars).getChars(pos, end, cbuf, off);
+      }
+      else if (chars instanceof CharBuffer)
+      {
+         // Read from a duplicate, the position of the given buffer is left untouched
+         CharBuffer dup = ((CharBuffer)chars).duplicate();
+         dup.position(dup.position() + pos);
+         dup.get(cbuf, off, count);
+      }
+      else
+      {
+         for (int i = pos; i < end; i++)
+            cbuf[off++] = chars.charAt(i);
+      }
+      pos = end;
+      return count;
+   }
+
+   public long skip(long n)
+   {
+      long count = Math.min(Math.max(n, 0), length - pos);
+      pos += count;
+      return count;
+   }
+
+   public boolean ready()
+   {
+      return true;
+   }
+
+   public boolean markSupported()
+   {
+      return true;
+   }
+
+   public void mark(int readAheadLimit)
+   {
+      mark = pos;
+   }
+
+   public void reset()
+   {
+      pos = mark;
+   }
+
+   public void close()
+   {
+   }
+}
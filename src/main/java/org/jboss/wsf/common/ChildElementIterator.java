@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Iterates over the child elements of a node by walking the sibling chain.
+ *
+ * Children are matched on their namespace URI and local name, an empty namespace
+ * URI matches on the local name only. The next match is looked up before the current
+ * one is returned, so the returned element may be detached while iterating,
+ * either directly or with {@link #remove()}.
+ */
+public final class ChildElementIterator implements Iterator<Element>, Iterable<Element>
+{
+   private final Node parent;
+   private final String nsURI;
+   private final String localPart;
+   private Element next;
+   // The element that was returned last, null after it was removed
+   private Element last;
+   private boolean started;
+
+   /**
+    * Iterate over the child elements with the given name.
+    * A null local part matches all child elements.
+    */
+   public ChildElementIterator(Node parent, String nsURI, String localPart)
+   {
+      this.parent = parent;
+      this.nsURI = (nsURI != null ? nsURI : "");
+      this.localPart = localPart;
+      this.next = findNext(parent.getFirstChild(), this.nsURI, localPart);
+   }
+
+   /** True if the given node is an element with the given name
+    */
+   public static boolean matches(Node node, String nsURI, String localPart)
+   {
+      if (node.getNodeType() != Node.ELEMENT_NODE)
+         return false;
+      if (localPart == null)
+         return true;
+
+      String localName = node.getLocalName();
+      if (localName == null)
+         localName = node.getNodeName();
+      if (localPart.equals(localName) == false)
+         return false;
+
+      if (nsURI == null || nsURI.length() == 0)
+         return true;
+
+      return nsURI.equals(node.getNamespaceURI());
+   }
+
+   /** Get the first matching element at or after the given node, or null
+    */
+   public static Element findNext(Node node, String nsURI, String localPart)
+   {
+      while (node != null)
+      {
+         if (matches(node, nsURI, localPart))
+            return (Element)node;
+
+         node = node.getNextSibling();
+      }
+      return null;
+   }
+
+   public boolean hasNext()
+   {
+      return next != null;
+   }
+
+   public Element next()
+   {
+      Element current = next;
+      if (current == null)
+         throw new NoSuchElementException();
+
+      started = true;
+      next = findNext(current.getNextSibling(), nsURI, localPart);
+      last = current;
+      return current;
+   }
+
+   /**
+    * Remove the element that was returned last from the parent.
+    * The next element has already been looked up and is not affected.
+    */
+   public void remove()
+   {
+      if (last == null)
+         throw new IllegalStateException("next() has not been called");
+
+      // The element may have been detached by the caller
+      if (last.getParentNode() == parent)
+         parent.removeChild(last);
+
+      last = null;
+   }
+
+   /**
+    * Returns this iterator if it has not been used yet, otherwise a new one
+    */
+   public Iterator<Element> iterator()
+   {
+      if (started)
+         return new ChildElementIterator(parent, nsURI, localPart);
+
+      started = true;
+      return this;
+   }
+}
@@ -0,0 +1,939 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * An XMLStreamWriter that writes what DOMWriter prints for the equivalent DOM tree.
+ *
+ * Namespace declarations that are written with writeNamespace() and writeDefaultNamespace()
+ * are the xmlns attributes of that tree. The output properties have the same meaning as in
+ * DOMWriter: prefixes that are not declared in the written tree are completed, attributes
+ * are ordered like DOMWriter orders the attributes of a parsed DOM, and text is escaped and
+ * pretty printed with the same rules.
+ *
+ * The start tag of an element is written when the next event shows whether the element is empty.
+ * With pretty printing, the content of an element is buffered up to its first child element.
+ * Entity references are not expanded and document type declarations are ignored, like DOMWriter
+ * does for a DOM that has no children below these nodes.
+ */
+public class DOMStreamWriter implements XMLStreamWriter
+{
+   private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+
+   // The output that the writer was created for
+   private final XMLOutput target;
+   // The current output, which is a buffer while the content of an element is held back
+   private XMLOutput out;
+   private final StringBuilder content = new StringBuilder();
+   private final XMLOutput contentOutput = new XMLOutput.BufferOutput(content);
+   // Consecutive character events, which are one text node in a DOM
+   private final StringBuilder text = new StringBuilder();
+
+   // True, if canonical output
+   private boolean canonical;
+   // True, if pretty printing should be used
+   private boolean prettyprint;
+   // True, if the XML declaration should be written
+   private boolean writeXMLDeclaration;
+   // True if we want namespace completion
+   private boolean completeNamespaces = true;
+   // Explicit character set encoding
+   private String charsetName;
+   // indent for the pretty printer
+   private int prettyIndent;
+   // The current default namespace
+   private String currentDefaultNamespace;
+   // Resolves prefixes that are not bound in the written tree
+   private NamespaceContext rootContext;
+
+   // The open elements, innermost last
+   private String[] openNames = new String[16];
+   private int[] openDeclaredScopes = new int[16];
+   private int[] openBoundScopes = new int[16];
+   private boolean[] openIndents = new boolean[16];
+   private int openCount;
+   // The index of the open element whose content is buffered, or -1
+   private int bufferedElement = -1;
+
+   // The start tag that is not yet written
+   private boolean startPending;
+   private boolean emptyPending;
+   private String elementPrefix;
+   private String elementLocalName;
+   private String elementNamespaceURI;
+   private String[] attrNames = new String[8];
+   private String[] attrPrefixes = new String[8];
+   private String[] attrLocalNames = new String[8];
+   private String[] attrNamespaceURIs = new String[8];
+   private String[] attrValues = new String[8];
+   private int[] attrOrder = new int[8];
+   private int attrCount;
+
+   // The namespace declarations of the written elements, innermost last
+   private String[] declaredPrefixes = new String[16];
+   private String[] declaredURIs = new String[16];
+   private int declaredCount;
+   // The bindings of setPrefix() and setDefaultNamespace(), innermost last
+   private String[] boundPrefixes = new String[8];
+   private String[] boundURIs = new String[8];
+   private int boundCount;
+   // The prefixes that the current element uses, in order of first use
+   private String[] usedPrefixes = new String[8];
+   private String[] usedURIs = new String[8];
+   private String[] usedKnownURIs = new String[8];
+   private int usedCount;
+
+   public DOMStreamWriter(Writer w)
+   {
+      this(new XMLOutput.WriterOutput(w), null);
+   }
+
+   public DOMStreamWriter(Writer w, String charsetName)
+   {
+      this(new XMLOutput.WriterOutput(w), charsetName);
+   }
+
+   /**
+    * Write UTF-8 encoded bytes to the given stream
+    */
+   public DOMStreamWriter(OutputStream stream)
+   {
+      this(new XMLOutput.ByteOutput(stream, "UTF-8"), null);
+   }
+
+   /**
+    * Write bytes in the given encoding to the given stream
+    */
+   public DOMStreamWriter(OutputStream stream, String charsetName)
+   {
+      this(new XMLOutput.ByteOutput(stream, charsetName), charsetName);
+   }
+
+   private DOMStreamWriter(XMLOutput out, String charsetName)
+   {
+      this.target = out;
+      this.out = out;
+      this.charsetName = charsetName;
+      this.writeXMLDeclaration = (charsetName != null);
+   }
+
+   public boolean isCanonical()
+   {
+      return canonical;
+   }
+
+   /**
+    * Set wheter entities should appear in their canonical form.
+    * The default is false.
+    */
+   public DOMStreamWriter setCanonical(boolean canonical)
+   {
+      this.canonical = canonical;
+      return this;
+   }
+
+   /**
+    * Set wheter elements should have their namespaces completed.
+    * The default is true.
+    */
+   public DOMStreamWriter setCompleteNamespaces(boolean complete)
+   {
+      this.completeNamespaces = complete;
+      return this;
+   }
+
+   public boolean isPrettyprint()
+   {
+      return prettyprint;
+   }
+
+   /**
+    * Set wheter element should be indented.
+    * The default is false.
+    */
+   public DOMStreamWriter setPrettyprint(boolean prettyprint)
+   {
+      this.prettyprint = prettyprint;
+      return this;
+   }
+
+   public boolean isWriteXMLDeclaration()
+   {
+      return writeXMLDeclaration;
+   }
+
+   /**
+    * Set wheter writeStartDocument() writes the XML declaration.
+    * The default is false, unless a charset is given.
+    */
+   public DOMStreamWriter setWriteXMLDeclaration(boolean flag)
+   {
+      this.writeXMLDeclaration = flag;
+      return this;
+   }
+
+   public void writeStartDocument() throws XMLStreamException
+   {
+      writeStartDocument(null, "1.0");
+   }
+
+   public void writeStartDocument(String version) throws XMLStreamException
+   {
+      writeStartDocument(null, version);
+   }
+
+   public void writeStartDocument(String encoding, String version) throws XMLStreamException
+   {
+      if (writeXMLDeclaration == false || canonical == true)
+         return;
+
+      String enc = (charsetName != null ? charsetName : encoding);
+      out.write("<?xml version='1.0'");
+      if (enc != null)
+      {
+         out.write(" encoding='");
+         out.write(enc);
+         out.write('\'');
+      }
+
+      out.write("?>");
+      if (prettyprint)
+         out.write(DOMWriter.LINE_SEPARATOR);
+   }
+
+   public void writeEndDocument() throws XMLStreamException
+   {
+      flushText();
+      if (startPending && emptyPending)
+         closeStartTag();
+
+      while (openCount > 0)
+         writeEndElement();
+   }
+
+   public void writeStartElement(String localName) throws XMLStreamException
+   {
+      startElement(null, localName, null, false);
+   }
+
+   public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException
+   {
+      startElement(requirePrefix(namespaceURI), localName, namespaceURI, false);
+   }
+
+   public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException
+   {
+      startElement(prefix, localName, namespaceURI, false);
+   }
+
+   public void writeEmptyElement(String localName) throws XMLStreamException
+   {
+      startElement(null, localName, null, true);
+   }
+
+   public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException
+   {
+      startElement(requirePrefix(namespaceURI), localName, namespaceURI, true);
+   }
+
+   public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException
+   {
+      startElement(prefix, localName, namespaceURI, true);
+   }
+
+   public void writeEndElement() throws XMLStreamException
+   {
+      flushText();
+      if (startPending && emptyPending == false)
+      {
+         writeStartTag();
+         endElement(false);
+         return;
+      }
+
+      if (startPending)
+         closeStartTag();
+
+      if (openCount == 0)
+         throw new XMLStreamException("No open element to end");
+
+      endElement(true);
+   }
+
+   public void writeAttribute(String localName, String value) throws XMLStreamException
+   {
+      addAttribute(null, localName, null, value);
+   }
+
+   public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException
+   {
+      addAttribute(requirePrefix(namespaceURI), localName, namespaceURI, value);
+   }
+
+   public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException
+   {
+      addAttribute(prefix, localName, namespaceURI, value);
+   }
+
+   public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException
+   {
+      if (prefix == null || prefix.length() == 0 || XMLConstants.XMLNS_ATTRIBUTE.equals(prefix))
+         writeDefaultNamespace(namespaceURI);
+      else
+         addAttribute(XMLConstants.XMLNS_ATTRIBUTE, prefix, XMLConstants.XMLNS_ATTRIBUTE_NS_URI, namespaceURI);
+   }
+
+   public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException
+   {
+      addAttribute(null, XMLConstants.XMLNS_ATTRIBUTE, XMLConstants.XMLNS_ATTRIBUTE_NS_URI, namespaceURI);
+   }
+
+   public void writeCharacters(String str) throws XMLStreamException
+   {
+      if (str == null || str.length() == 0)
+         return;
+
+      // Consecutive character events are one text node
+      if (startPending)
+         closeStartTag();
+
+      if (prettyprint)
+         text.append(str);
+      else
+         DOMWriter.writeNormalized(out, str, canonical);
+   }
+
+   public void writeCharacters(char[] chars, int start, int len) throws XMLStreamException
+   {
+      if (len == 0)
+         return;
+
+      if (startPending)
+         closeStartTag();
+
+      if (prettyprint)
+         text.append(chars, start, len);
+      else
+         DOMWriter.writeNormalized(out, new String(chars, start, len), canonical);
+   }
+
+   public void writeCData(String data) throws XMLStreamException
+   {
+      beginChild(false);
+      if (canonical)
+      {
+         DOMWriter.writeNormalized(out, data, canonical);
+      }
+      else
+      {
+         out.write("<![CDATA[");
+         out.write(data);
+         out.write("]]>");
+      }
+   }
+
+   public void writeComment(String data) throws XMLStreamException
+   {
+      beginChild(false);
+      for (int i = 0; i < prettyIndent; i++)
+      {
+         out.write(' ');
+      }
+
+      out.write("<!--");
+      if (data != null)
+      {
+         out.write(data);
+      }
+      out.write("-->");
+
+      if (prettyprint)
+      {
+         out.write('\n');
+      }
+   }
+
+   public void writeProcessingInstruction(String target) throws XMLStreamException
+   {
+      writeProcessingInstruction(target, null);
+   }
+
+   public void writeProcessingInstruction(String target, String data) throws XMLStreamException
+   {
+      beginChild(false);
+      out.write("<?");
+      out.write(target);
+      if (data != null && data.length() > 0)
+      {
+         out.write(' ');
+         out.write(data);
+      }
+      out.write("?>");
+   }
+
+   public void writeEntityRef(String name) throws XMLStreamException
+   {
+      beginChild(false);
+      out.write('&');
+      out.write(name);
+      out.write(';');
+   }
+
+   public void writeDTD(String dtd) throws XMLStreamException
+   {
+      // DOMWriter does not print document types
+   }
+
+   public String getPrefix(String uri) throws XMLStreamException
+   {
+      if (uri == null)
+         return null;
+
+      for (int i = declaredCount - 1; i >= 0; i--)
+      {
+         if (uri.equals(declaredURIs[i]))
+            return declaredPrefixes[i];
+      }
+      for (int i = boundCount - 1; i >= 0; i--)
+      {
+         if (uri.equals(boundURIs[i]))
+            return boundPrefixes[i];
+      }
+      return (rootContext != null ? rootContext.getPrefix(uri) : null);
+   }
+
+   public void setPrefix(String prefix, String uri) throws XMLStreamException
+   {
+      if (boundCount == boundPrefixes.length)
+      {
+         boundPrefixes = DOMWriter.grow(boundPrefixes);
+         boundURIs = DOMWriter.grow(boundURIs);
+      }
+      boundPrefixes[boundCount] = (prefix != null ? prefix : "");
+      boundURIs[boundCount] = uri;
+      boundCount++;
+   }
+
+   public void setDefaultNamespace(String uri) throws XMLStreamException
+   {
+      setPrefix("", uri);
+   }
+
+   public void setNamespaceContext(NamespaceContext context) throws XMLStreamException
+   {
+      this.rootContext = context;
+   }
+
+   public NamespaceContext getNamespaceContext()
+   {
+      return new NamespaceContext()
+      {
+         public String getNamespaceURI(String prefix)
+         {
+            String nsURI = lookupDeclared(prefix);
+            return (nsURI != null ? nsURI : lookupOuter(prefix));
+         }
+
+         public String getPrefix(String namespaceURI)
+         {
+            try
+            {
+               return DOMStreamWriter.this.getPrefix(namespaceURI);
+            }
+            catch (XMLStreamException ex)
+            {
+               return null;
+            }
+         }
+
+         public Iterator getPrefixes(String namespaceURI)
+         {
+            String prefix = getPrefix(namespaceURI);
+            return (prefix != null ? Collections.singleton(prefix) : Collections.emptySet()).iterator();
+         }
+      };
+   }
+
+   public Object getProperty(String name) throws IllegalArgumentException
+   {
+      throw new IllegalArgumentException("Unsupported property: " + name);
+   }
+
+   public void flush() throws XMLStreamException
+   {
+      target.flush();
+   }
+
+   /** Flush the output, the underlying writer or stream is not closed */
+   public void close() throws XMLStreamException
+   {
+      target.flush();
+   }
+
+   /**
+    * Flush the output and check its error state.
+    * Like a PrintWriter, this writer does not throw IOExceptions.
+    */
+   public boolean checkError()
+   {
+      return target.checkError();
+   }
+
+   private void startElement(String prefix, String localName, String namespaceURI, boolean empty) throws XMLStreamException
+   {
+      beginChild(true);
+
+      if (openCount == openNames.length)
+      {
+         int size = openCount * 2;
+         String[] names = new String[size];
+         System.arraycopy(openNames, 0, names, 0, openCount);
+         openNames = names;
+         int[] scopes = new int[size];
+         System.arraycopy(openDeclaredScopes, 0, scopes, 0, openCount);
+         openDeclaredScopes = scopes;
+         scopes = new int[size];
+         System.arraycopy(openBoundScopes, 0, scopes, 0, openCount);
+         openBoundScopes = scopes;
+         boolean[] indents = new boolean[size];
+         System.arraycopy(openIndents, 0, indents, 0, openCount);
+         openIndents = indents;
+      }
+
+      String qname = (prefix != null && prefix.length() > 0 ? prefix + ":" + localName : localName);
+      openNames[openCount] = qname;
+      openDeclaredScopes[openCount] = declaredCount;
+      openBoundScopes[openCount] = boundCount;
+      openIndents[openCount] = false;
+      openCount++;
+
+      startPending = true;
+      emptyPending = empty;
+      elementPrefix = (prefix != null && prefix.length() > 0 ? prefix : null);
+      elementLocalName = localName;
+      elementNamespaceURI = (namespaceURI != null && namespaceURI.length() > 0 ? namespaceURI : null);
+      attrCount = 0;
+   }
+
+   private void addAttribute(String prefix, String localName, String namespaceURI, String value) throws XMLStreamException
+   {
+      if (startPending == false)
+         throw new XMLStreamException("Attribute not allowed here: " + localName);
+
+      if (attrCount == attrNames.length)
+      {
+         attrNames = DOMWriter.grow(attrNames);
+         attrPrefixes = DOMWriter.grow(attrPrefixes);
+         attrLocalNames = DOMWriter.grow(attrLocalNames);
+         attrNamespaceURIs = DOMWriter.grow(attrNamespaceURIs);
+         attrValues = DOMWriter.grow(attrValues);
+         attrOrder = new int[attrNames.length];
+      }
+
+      prefix = (prefix != null && prefix.length() > 0 ? prefix : null);
+      attrNames[attrCount] = (prefix != null ? prefix + ":" + localName : localName);
+      attrPrefixes[attrCount] = prefix;
+      attrLocalNames[attrCount] = localName;
+      attrNamespaceURIs[attrCount] = (namespaceURI != null && namespaceURI.length() > 0 ? namespaceURI : null);
+      attrValues[attrCount] = (value != null ? value : "");
+      attrCount++;
+   }
+
+   private String requirePrefix(String namespaceURI) throws XMLStreamException
+   {
+      // Declarations of the pending start tag are in scope for its attributes
+      if (startPending)
+      {
+         for (int i = attrCount - 1; i >= 0; i--)
+         {
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attrNamespaceURIs[i]) && attrValues[i].equals(namespaceURI))
+               return (attrPrefixes[i] != null ? attrLocalNames[i] : "");
+         }
+      }
+
+      String prefix = getPrefix(namespaceURI);
+      if (prefix == null)
+         throw new XMLStreamException("No prefix bound to namespace: " + namespaceURI);
+
+      return prefix;
+   }
+
+   // Write the pending start tag and text that precede a child of the current element
+   private void beginChild(boolean element)
+   {
+      flushText();
+      if (startPending)
+         closeStartTag();
+
+      if (element && bufferedElement >= 0 && bufferedElement == openCount - 1)
+      {
+         // The first child element, the end marker of the current element is indented
+         target.write('\n');
+         writeContent();
+         openIndents[bufferedElement] = true;
+         bufferedElement = -1;
+      }
+   }
+
+   // Write the pending start tag of an element that has content, or of an empty element
+   private void closeStartTag()
+   {
+      writeStartTag();
+      if (emptyPending)
+      {
+         endElement(false);
+      }
+      else
+      {
+         out.write('>');
+         if (prettyprint)
+         {
+            bufferedElement = openCount - 1;
+            out = contentOutput;
+         }
+      }
+   }
+
+   private void endElement(boolean hasChildNodes)
+   {
+      int index = openCount - 1;
+      if (bufferedElement == index)
+      {
+         writeContent();
+         bufferedElement = -1;
+      }
+
+      if (prettyprint)
+         prettyIndent--;
+
+      if (hasChildNodes == false)
+      {
+         out.write("/>");
+      }
+      else
+      {
+         if (openIndents[index])
+         {
+            for (int i = 0; i < prettyIndent; i++)
+            {
+               out.write(' ');
+            }
+         }
+
+         out.write("</");
+         out.write(openNames[index]);
+         out.write('>');
+      }
+
+      if (prettyIndent > 0)
+      {
+         out.write('\n');
+      }
+
+      declaredCount = openDeclaredScopes[index];
+      boundCount = openBoundScopes[index];
+      openNames[index] = null;
+      openCount = index;
+   }
+
+   // Write the buffered content and continue with the target
+   private void writeContent()
+   {
+      if (content.length() > 0)
+      {
+         target.write(content.toString());
+         content.setLength(0);
+      }
+      out = target;
+   }
+
+   private void flushText()
+   {
+      if (text.length() == 0)
+         return;
+
+      String str = text.toString();
+      text.setLength(0);
+      if (prettyprint == false || DOMWriter.isBlank(str, canonical) == false)
+         DOMWriter.writeNormalized(out, str, canonical);
+   }
+
+   private void writeStartTag()
+   {
+      startPending = false;
+      if (prettyprint)
+      {
+         for (int i = 0; i < prettyIndent; i++)
+         {
+            out.write(' ');
+         }
+         prettyIndent++;
+      }
+
+      out.write('<');
+      out.write(openNames[openCount - 1]);
+
+      for (int i = 0; i < attrCount; i++)
+      {
+         if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attrNamespaceURIs[i]))
+            declareNamespace(attrPrefixes[i] != null ? attrLocalNames[i] : "", attrValues[i]);
+      }
+
+      usedCount = 0;
+      if (elementPrefix != null)
+      {
+         usePrefix(elementPrefix, lookupDeclared(elementPrefix), elementNamespaceURI);
+      }
+
+      orderAttributes();
+      String defaultNamespace = "";
+      for (int n = 0; n < attrCount; n++)
+      {
+         int i = attrOrder[n];
+         String atPrefix = attrPrefixes[i];
+         String atName = attrNames[i];
+         String atValue = attrValues[i];
+
+         if (atName.equals("xmlns"))
+         {
+            defaultNamespace = atValue;
+            currentDefaultNamespace = DOMWriter.normalize(atValue, canonical);
+         }
+
+         if (atPrefix != null && !atPrefix.equals("xmlns") && !atPrefix.equals("xml"))
+         {
+            String nsURI = lookupDeclared(atPrefix);
+            usePrefix(atPrefix, nsURI, attrNamespaceURIs[i]);
+            // xsi:type='ns1:SubType', xsi:type='xsd:string'
+            if (attrLocalNames[i].equals("type") && atValue.indexOf(":") > 0)
+            {
+               String typeValue = DOMWriter.normalize(atValue, canonical);
+               // xsi defined outside of the written tree
+               if (nsURI == null)
+                  nsURI = (attrNamespaceURIs[i] != null ? attrNamespaceURIs[i] : lookupOuter(atPrefix));
+
+               if (XSI_NAMESPACE.equals(nsURI))
+               {
+                  String typePrefix = typeValue.substring(0, typeValue.indexOf(":"));
+                  usePrefix(typePrefix, lookupDeclared(typePrefix), null);
+               }
+            }
+         }
+
+         out.write(' ');
+         out.write(atName);
+         out.write("='");
+         DOMWriter.writeNormalized(out, atValue, canonical);
+         out.write('\'');
+      }
+
+      // Add namespace declaration for prefixes
+      // that are not declared in the written tree
+      if (completeNamespaces)
+      {
+         completeNamespaces();
+      }
+
+      // <Hello xmlns='http://somens'>World</Hello>
+      if (elementPrefix == null && elementNamespaceURI != null)
+      {
+         if (defaultNamespace.length() == 0 && !elementNamespaceURI.equals(currentDefaultNamespace))
+         {
+            out.write(" xmlns='");
+            out.write(elementNamespaceURI);
+            out.write('\'');
+            currentDefaultNamespace = elementNamespaceURI;
+         }
+      }
+   }
+
+   // Order the attributes like DOMWriter orders the attributes of a parsed DOM
+   private void orderAttributes()
+   {
+      for (int n = 0; n < attrCount; n++)
+      {
+         int i = n;
+         while (i > 0 && compareAttributes(attrOrder[i - 1], n) > 0)
+         {
+            attrOrder[i] = attrOrder[i - 1];
+            i--;
+         }
+         attrOrder[i] = n;
+      }
+   }
+
+   private int compareAttributes(int i, int j)
+   {
+      // A parsed DOM keeps its attributes sorted by name
+      if (canonical == false)
+         return attrNames[i].compareTo(attrNames[j]);
+
+      boolean decl1 = XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attrNamespaceURIs[i]);
+      boolean decl2 = XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attrNamespaceURIs[j]);
+      if (decl1 || decl2)
+      {
+         if (decl1 == false)
+            return 1;
+         if (decl2 == false)
+            return -1;
+
+         String prefix1 = (attrPrefixes[i] != null ? attrLocalNames[i] : "");
+         String prefix2 = (attrPrefixes[j] != null ? attrLocalNames[j] : "");
+         return prefix1.compareTo(prefix2);
+      }
+
+      String nsURI1 = (attrNamespaceURIs[i] != null ? attrNamespaceURIs[i] : "");
+      String nsURI2 = (attrNamespaceURIs[j] != null ? attrNamespaceURIs[j] : "");
+      int result = nsURI1.compareTo(nsURI2);
+      if (result == 0)
+         result = attrLocalNames[i].compareTo(attrLocalNames[j]);
+
+      return result;
+   }
+
+   private void declareNamespace(String prefix, String nsURI)
+   {
+      // An empty declaration does not hide the outer one
+      if (nsURI.length() == 0)
+         return;
+
+      if (declaredCount == declaredPrefixes.length)
+      {
+         declaredPrefixes = DOMWriter.grow(declaredPrefixes);
+         declaredURIs = DOMWriter.grow(declaredURIs);
+      }
+      declaredPrefixes[declaredCount] = prefix;
+      declaredURIs[declaredCount] = nsURI;
+      declaredCount++;
+   }
+
+   // The namespace URI that a written element declares for the prefix
+   private String lookupDeclared(String prefix)
+   {
+      for (int i = declaredCount - 1; i >= 0; i--)
+      {
+         if (prefix.equals(declaredPrefixes[i]))
+            return declaredURIs[i];
+      }
+      return null;
+   }
+
+   // The namespace URI that is bound to the prefix outside of the written tree
+   private String lookupOuter(String prefix)
+   {
+      for (int i = boundCount - 1; i >= 0; i--)
+      {
+         if (prefix.equals(boundPrefixes[i]))
+            return boundURIs[i];
+      }
+
+      String nsURI = (rootContext != null ? rootContext.getNamespaceURI(prefix) : null);
+      return (nsURI != null && nsURI.length() > 0 ? nsURI : null);
+   }
+
+   private void usePrefix(String prefix, String nsURI, String knownURI)
+   {
+      for (int i = 0; i < usedCount; i++)
+      {
+         if (prefix.equals(usedPrefixes[i]))
+         {
+            usedURIs[i] = nsURI;
+            if (knownURI != null)
+               usedKnownURIs[i] = knownURI;
+            return;
+         }
+      }
+
+      if (usedCount == usedPrefixes.length)
+      {
+         usedPrefixes = DOMWriter.grow(usedPrefixes);
+         usedURIs = DOMWriter.grow(usedURIs);
+         usedKnownURIs = DOMWriter.grow(usedKnownURIs);
+      }
+      usedPrefixes[usedCount] = prefix;
+      usedURIs[usedCount] = nsURI;
+      usedKnownURIs[usedCount] = knownURI;
+      usedCount++;
+   }
+
+   // Add namespace declarations for the used prefixes that are not declared in the written tree
+   private void completeNamespaces()
+   {
+      int missing = 0;
+      for (int i = 0; i < usedCount; i++)
+      {
+         if (usedURIs[i] == null)
+            missing++;
+      }
+
+      if (missing == 1)
+      {
+         for (int i = 0; i < usedCount; i++)
+         {
+            if (usedURIs[i] == null)
+               writeNamespaceDeclaration(i);
+         }
+      }
+      else if (missing > 1)
+      {
+         // Keep the order in which DOMWriter writes the declarations
+         Map<String, Integer> nsMap = new HashMap<String, Integer>();
+         for (int i = 0; i < usedCount; i++)
+            nsMap.put(usedPrefixes[i], i);
+
+         Iterator<Integer> it = nsMap.values().iterator();
+         while (it.hasNext())
+         {
+            int i = it.next();
+            if (usedURIs[i] == null)
+               writeNamespaceDeclaration(i);
+         }
+      }
+   }
+
+   private void writeNamespaceDeclaration(int index)
+   {
+      String nsURI = lookupOuter(usedPrefixes[index]);
+      if (nsURI == null)
+         nsURI = usedKnownURIs[index];
+
+      out.write(" xmlns:");
+      out.write(usedPrefixes[index]);
+      out.write("='");
+      out.write(nsURI);
+      out.write('\'');
+   }
+}
@@ -23,12 +23,13 @@ package org.jboss.wsf.common;
 
 // $Id$
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
-import java.util.LinkedList;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -38,14 +39,13 @@ import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.sax.SAXSource;
-import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.jboss.logging.Logger;
@@ -77,16 +77,7 @@ public final class DOMUtils
       {
          try
          {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setValidating(false);
-            factory.setNamespaceAware(true);
-            
-            // 2023-01-24: disable XXE
-            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
-            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-            
-            DocumentBuilder builder = factory.newDocumentBuilder();
+            DocumentBuilder builder = newDocumentBuilderFactory().newDocumentBuilder();
             setEntityResolver(builder);
             return builder;
          }
@@ -95,35 +86,80 @@ public final class DOMUtils
             throw new RuntimeException("Failed to create DocumentBuilder", e);
          }
       }
+   };
 
-      private void setEntityResolver(DocumentBuilder builder)
-      {
-         String[] resolvers = new String[] { "org.jboss.ws.core.utils.JBossWSEntityResolver", "org.jboss.util.xml.JBossEntityResolver" };
+   // The factory for the identity transformers that are used by sourceToElement, access must be synchronized
+   private static TransformerFactory transformerFactory = TransformerFactory.newInstance();
 
-         EntityResolver entityResolver = null;
-         ClassLoader loader = Thread.currentThread().getContextClassLoader();
-         for (String resolver : resolvers)
-         {
-            try
-            {
-               Class<?> resolverClass = loader.loadClass(resolver);
-               entityResolver = (EntityResolver)resolverClass.newInstance();
-            }
-            catch (Exception ex)
-            {
-               log.debug("Cannot load: " + resolver);
-            }
-         }
+   // StAXSource is part of JAXP 1.4, null if the VM does not provide it
+   private static Class<?> staxSourceClass;
+   // Reads the stream reader of a StAXSource, null if not compiled with JAXP 1.4
+   private static Method staxSourceConverter;
+   static
+   {
+      try
+      {
+         staxSourceClass = Class.forName("javax.xml.transform.stax.StAXSource");
+         staxSourceConverter = Class.forName("org.jboss.wsf.common.StAXSourceConverter").getDeclaredMethod("toElement", Source.class);
+      }
+      catch (Throwable t)
+      {
+         staxSourceConverter = null;
+         log.debug("StAXSource stream readers not supported: " + t);
+      }
+   }
 
-         if (entityResolver != null)
-            builder.setEntityResolver(entityResolver);
+   // The builder pool, null if builders are associated with the current thread
+   private static volatile DocumentBuilderPool builderPool;
+   static
+   {
+      if (Boolean.getBoolean("org.jboss.wsf.common.DOMUtils.poolBuilders"))
+      {
+         int maxIdle = Integer.getInteger("org.jboss.wsf.common.DOMUtils.poolMaxIdle", 2 * Runtime.getRuntime().availableProcessors());
+         int maxActive = Integer.getInteger("org.jboss.wsf.common.DOMUtils.poolMaxActive", 0);
+         long maxWait = Long.getLong("org.jboss.wsf.common.DOMUtils.poolMaxWait", 10000);
+         builderPool = new DocumentBuilderPool(maxIdle, maxActive, maxWait);
       }
-   };
+   }
 
    public static void clearThreadLocals()
    {
       documentThreadLocal.remove();
       builderThreadLocal.remove();
+      DOMWriter.clearThreadLocal();
+      DocumentArena.clearThreadLocal();
+   }
+
+   /** Create a DocumentBuilderFactory that is namespace aware and does not resolve external entities
+    */
+   static DocumentBuilderFactory newDocumentBuilderFactory()
+   {
+      try
+      {
+         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+         factory.setValidating(false);
+         factory.setNamespaceAware(true);
+
+         // 2023-01-24: disable XXE
+         factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+         factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+         factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+         return factory;
+      }
+      catch (ParserConfigurationException e)
+      {
+         throw new RuntimeException("Failed to create DocumentBuilderFactory", e);
+      }
+   }
+
+   /** Set the entity resolver that is associated with the thread context class loader
+    */
+   static void setEntityResolver(DocumentBuilder builder)
+   {
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      EntityResolver entityResolver = EntityResolverCache.getEntityResolver(loader);
+      if (entityResolver != null)
+         builder.setEntityResolver(entityResolver);
    }
 
    // Hide the constructor
@@ -132,19 +168,60 @@ public final class DOMUtils
    }
 
    /** Initialize the DocumentBuilder
+    *
+    * The builder is associated with the current thread and is not taken from the builder pool.
+    * Use {@link #borrowDocumentBuilder()} for a builder that is handed back.
     */
    public static DocumentBuilder getDocumentBuilder()
    {
       return builderThreadLocal.get();
    }
 
+   /** Get a DocumentBuilder that must be handed back with {@link #releaseDocumentBuilder(DocumentBuilder)}
+    * 
+    * If builder pooling is enabled the builder is borrowed from the pool, otherwise
+    * it is the builder of the current thread.
+    */
+   public static DocumentBuilder borrowDocumentBuilder()
+   {
+      DocumentBuilderPool pool = builderPool;
+      return (pool != null ? pool.borrow() : builderThreadLocal.get());
+   }
+
+   /** Hand back a DocumentBuilder that was obtained from {@link #borrowDocumentBuilder()}.
+    *
+    * This is a noop unless builder pooling is enabled
+    */
+   public static void releaseDocumentBuilder(DocumentBuilder builder)
+   {
+      DocumentBuilderPool pool = builderPool;
+      if (pool != null)
+         pool.release(builder);
+   }
+
+   /** Get the builder pool, or null if builders are associated with the current thread
+    */
+   public static DocumentBuilderPool getDocumentBuilderPool()
+   {
+      return builderPool;
+   }
+
+   /** Set the builder pool that is used by {@link #borrowDocumentBuilder()}.
+    *
+    * A null pool switches back to one builder per thread
+    */
+   public static void setDocumentBuilderPool(DocumentBuilderPool pool)
+   {
+      builderPool = pool;
+   }
+
    /** Parse the given XML string and return the root Element
     */
    public static Element parse(String xmlString) throws IOException
    {
       try
       {
-         return parse(new ByteArrayInputStream(xmlString.getBytes("UTF-8")));
+         return parse(new InputSource(new StringReader(xmlString)));
       }
       catch (IOException e)
       {
@@ -153,39 +230,98 @@ public final class DOMUtils
       }
    }
 
+   /** Parse the given XML characters and return the root Element.
+    *
+    * The characters are read in place, the sequence must not be modified while it is parsed.
+    * An encoding in the XML declaration is ignored.
+    */
+   public static Element parse(CharSequence xmlChars) throws IOException
+   {
+      try
+      {
+         return parse(new InputSource(new CharSequenceReader(xmlChars)));
+      }
+      catch (IOException e)
+      {
+         log.error("Cannot parse: " + xmlChars);
+         throw e;
+      }
+   }
+
    /** Parse the given XML stream and return the root Element
     */
    public static Element parse(InputStream xmlStream) throws IOException
    {
+      DocumentBuilderPool pool = builderPool;
+      DocumentBuilder builder = (pool != null ? pool.borrow() : builderThreadLocal.get());
       try
       {
-         return getDocumentBuilder().parse(xmlStream).getDocumentElement();
+         return builder.parse(xmlStream).getDocumentElement();
       }
       catch (SAXException se)
       {
          throw new IOException(se.toString());
       }
+      finally
+      {
+         if (pool != null)
+            pool.release(builder);
+      }
    }
 
    /** Parse the given input source and return the root Element
     */
    public static Element parse(InputSource source) throws IOException
    {
+      DocumentBuilderPool pool = builderPool;
+      DocumentBuilder builder = (pool != null ? pool.borrow() : builderThreadLocal.get());
       try
       {
-         return getDocumentBuilder().parse(source).getDocumentElement();
+         return builder.parse(source).getDocumentElement();
       }
       catch (SAXException se)
       {
          throw new IOException(se.toString());
       }
+      finally
+      {
+         if (pool != null)
+            pool.release(builder);
+      }
+   }
+
+   /** Parse the given XML stream and return the element at the given path, or null if there is none.
+    *
+    * The path starts with the root element, i.e. Envelope, Body, getPrice. A name without namespace matches
+    * on the local name only and a local name of "*" matches any element. Elements that are not on the path 
+    * are skipped without building DOM nodes. The returned element is the document element of a new document 
+    * and carries the namespace declarations of its ancestors.
+    */
+   public static Element parseSubtree(InputStream xmlStream, QName... path) throws IOException
+   {
+      if (path == null || path.length == 0)
+         throw new IllegalArgumentException("Empty path");
+
+      return StAXDOMBuilder.parse(xmlStream, path, false);
+   }
+
+   /** Parse the given XML stream and return the first element with the given name at any depth, or null if there is none.
+    *
+    * Only the subtree of the matching element is built, see {@link #parseSubtree(InputStream, QName...)}
+    */
+   public static Element parseFirstElement(InputStream xmlStream, QName nodeName) throws IOException
+   {
+      if (nodeName == null)
+         throw new IllegalArgumentException("Null name");
+
+      return StAXDOMBuilder.parse(xmlStream, new QName[] { nodeName }, true);
    }
 
    /** Create an Element for a given name
     */
    public static Element createElement(String localPart)
    {
-      Document doc = getOwnerDocument();
+      Document doc = getNewNodeOwnerDocument();
       log.trace("createElement {}" + localPart);
       return doc.createElement(localPart);
    }
@@ -194,7 +330,7 @@ public final class DOMUtils
     */
    public static Element createElement(String localPart, String prefix)
    {
-      Document doc = getOwnerDocument();
+      Document doc = getNewNodeOwnerDocument();
       log.trace("createElement {}" + prefix + ":" + localPart);
       return doc.createElement(prefix + ":" + localPart);
    }
@@ -203,7 +339,7 @@ public final class DOMUtils
     */
    public static Element createElement(String localPart, String prefix, String uri)
    {
-      Document doc = getOwnerDocument();
+      Document doc = getNewNodeOwnerDocument();
       if (prefix == null || prefix.length() == 0)
       {
          log.trace("createElement {" + uri + "}" + localPart);
@@ -227,11 +363,13 @@ public final class DOMUtils
     */
    public static Text createTextNode(String value)
    {
-      Document doc = getOwnerDocument();
+      Document doc = getNewNodeOwnerDocument();
       return doc.createTextNode(value);
    }
 
    /** Get the qname of the given node.
+    *
+    * The returned instance is shared, see {@link QNameCache}
     */
    public static QName getElementQName(Element el)
    {
@@ -240,6 +378,8 @@ public final class DOMUtils
    }
 
    /** Transform the given qualified name into a QName
+    *
+    * The returned instance is shared, see {@link QNameCache}
     */
    public static QName resolveQName(Element el, String qualifiedName)
    {
@@ -283,7 +423,7 @@ public final class DOMUtils
          }
       }
 
-      qname = new QName(namespaceURI, localPart, prefix);
+      qname = QNameCache.intern(namespaceURI, localPart, prefix);
       return qname;
    }
 
@@ -293,7 +433,8 @@ public final class DOMUtils
     */
    public static String getAttributeValue(Element el, String attrName)
    {
-      return getAttributeValue(el, new QName(attrName));
+      String attr = el.getAttribute(attrName);
+      return ("".equals(attr) ? null : attr);
    }
 
    /** Get the value from the given attribute
@@ -317,8 +458,8 @@ public final class DOMUtils
     */
    public static QName getAttributeValueAsQName(Element el, String attrName)
    {
-      return getAttributeValueAsQName(el, new QName(attrName));
-
+      String qualifiedName = getAttributeValue(el, attrName);
+      return (qualifiedName != null ? resolveQName(el, qualifiedName) : null);
    }
 
    /** Get the qname value from the given attribute
@@ -340,7 +481,8 @@ public final class DOMUtils
     */
    public static boolean getAttributeValueAsBoolean(Element el, String attrName)
    {
-      return getAttributeValueAsBoolean(el, new QName(attrName));
+      String attrVal = getAttributeValue(el, attrName);
+      return "true".equalsIgnoreCase(attrVal) || "1".equalsIgnoreCase(attrVal);
    }
 
    /** Get the boolean value from the given attribute
@@ -356,7 +498,8 @@ public final class DOMUtils
     */
    public static Integer getAttributeValueAsInteger(Element el, String attrName)
    {
-      return getAttributeValueAsInteger(el, new QName(attrName));
+      String attrVal = getAttributeValue(el, attrName);
+      return (attrVal != null ? new Integer(attrVal) : null);
    }
 
    /** Get the integer value from the given attribute
@@ -431,87 +574,112 @@ public final class DOMUtils
     */
    public static boolean hasChildElements(Node node)
    {
-      NodeList nlist = node.getChildNodes();
-      for (int i = 0; i < nlist.getLength(); i++)
-      {
-         Node child = nlist.item(i);
-         if (child.getNodeType() == Node.ELEMENT_NODE)
-            return true;
-      }
-      return false;
+      return ChildElementIterator.findNext(node.getFirstChild(), null, null) != null;
    }
 
    /** Gets child elements
     */
    public static Iterator<Element> getChildElements(Node node)
    {
-      List<Element> list = new LinkedList<Element>();
-      NodeList nlist = node.getChildNodes();
-      for (int i = 0; i < nlist.getLength(); i++)
-      {
-         Node child = nlist.item(i);
-         if (child.getNodeType() == Node.ELEMENT_NODE)
-            list.add((Element)child);
-      }
-      return list.iterator();
+      return new ChildElementIterator(node, null, null);
+   }
+
+   /** Gets child elements for use in a for-each loop
+    */
+   public static Iterable<Element> childElements(Node node)
+   {
+      return new ChildElementIterator(node, null, null);
+   }
+
+   /** Gets the child elements for a given qname for use in a for-each loop
+    */
+   public static Iterable<Element> childElements(Node node, QName nodeName)
+   {
+      return new ChildElementIterator(node, nodeName.getNamespaceURI(), nodeName.getLocalPart());
    }
 
    /** Get the concatenated text content, or null.
     */
    public static String getTextContent(Node node)
    {
-      boolean hasTextContent = false;
-      StringBuffer buffer = new StringBuffer();
-      NodeList nlist = node.getChildNodes();
-      for (int i = 0; i < nlist.getLength(); i++)
+      Node first = node.getFirstChild();
+      while (first != null && first.getNodeType() != Node.TEXT_NODE)
+         first = first.getNextSibling();
+
+      if (first == null)
+         return null;
+
+      // Most elements have a single text node
+      String value = first.getNodeValue();
+      int length = value.length();
+      boolean single = true;
+      for (Node child = first.getNextSibling(); child != null; child = child.getNextSibling())
       {
-         Node child = nlist.item(i);
          if (child.getNodeType() == Node.TEXT_NODE)
          {
+            length += child.getNodeValue().length();
+            single = false;
+         }
+      }
+      if (single)
+         return value;
+
+      StringBuilder buffer = new StringBuilder(length);
+      for (Node child = first; child != null; child = child.getNextSibling())
+      {
+         if (child.getNodeType() == Node.TEXT_NODE)
             buffer.append(child.getNodeValue());
+      }
+      return buffer.toString();
+   }
+
+   /** Append the concatenated text content to the given target.
+    *
+    * @return false if the node has no text content
+    */
+   public static boolean appendTextContent(Node node, Appendable target) throws IOException
+   {
+      boolean hasTextContent = false;
+      for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         if (child.getNodeType() == Node.TEXT_NODE)
+         {
+            target.append(child.getNodeValue());
             hasTextContent = true;
          }
       }
-      return (hasTextContent ? buffer.toString() : null);
+      return hasTextContent;
    }
 
    /** Gets the first child element
     */
    public static Element getFirstChildElement(Node node)
    {
-      return getFirstChildElementIntern(node, null);
+      return ChildElementIterator.findNext(node.getFirstChild(), null, null);
    }
 
    /** Gets the first child element for a given local name without namespace
     */
    public static Element getFirstChildElement(Node node, String nodeName)
    {
-      return getFirstChildElementIntern(node, new QName(nodeName));
+      return ChildElementIterator.findNext(node.getFirstChild(), null, nodeName);
    }
 
    /** Gets the first child element for a given qname
     */
    public static Element getFirstChildElement(Node node, QName nodeName)
    {
-      return getFirstChildElementIntern(node, nodeName);
-   }
+      if (nodeName == null)
+         return getFirstChildElement(node);
 
-   private static Element getFirstChildElementIntern(Node node, QName nodeName)
-   {
-      Element childElement = null;
-      Iterator it = getChildElementsIntern(node, nodeName);
-      if (it.hasNext())
-      {
-         childElement = (Element)it.next();
-      }
-      return childElement;
+      return ChildElementIterator.findNext(node.getFirstChild(), nodeName.getNamespaceURI(), nodeName.getLocalPart());
    }
 
    /** Gets the child elements for a given local name without namespace
     */
    public static Iterator getChildElements(Node node, String nodeName)
    {
-      return getChildElementsIntern(node, new QName(nodeName));
+      return new ChildElementIterator(node, null, nodeName);
    }
 
    /** Gets the child element for a given qname
@@ -523,51 +691,35 @@ public final class DOMUtils
    
    public static List<Element> getChildElementsAsList(Node node, String nodeName)
    {
-      return getChildElementsAsListIntern(node, new QName(nodeName));
+      return getChildElementsAsListIntern(node, null, nodeName);
    }
    
    public static List<Element> getChildElementsAsList(Node node, QName nodeName)
    {
-      return getChildElementsAsListIntern(node, nodeName);
+      if (nodeName == null)
+         return getChildElementsAsListIntern(node, null, null);
+
+      return getChildElementsAsListIntern(node, nodeName.getNamespaceURI(), nodeName.getLocalPart());
    }
    
-   private static List<Element> getChildElementsAsListIntern(Node node, QName nodeName)
+   private static List<Element> getChildElementsAsListIntern(Node node, String nsURI, String localPart)
    {
-      List<Element> list = new LinkedList<Element>();
-      NodeList nlist = node.getChildNodes();
-      for (int i = 0; i < nlist.getLength(); i++)
+      List<Element> list = new ArrayList<Element>();
+      Element child = ChildElementIterator.findNext(node.getFirstChild(), nsURI, localPart);
+      while (child != null)
       {
-         Node child = nlist.item(i);
-         if (child.getNodeType() == Node.ELEMENT_NODE)
-         {
-            if (nodeName == null)
-            {
-               list.add((Element)child);
-            }
-            else
-            {
-               QName qname;
-               if (nodeName.getNamespaceURI().length() > 0)
-               {
-                  qname = new QName(child.getNamespaceURI(), child.getLocalName());
-               }
-               else
-               {
-                  qname = new QName(child.getLocalName());
-               }
-               if (qname.equals(nodeName))
-               {
-                  list.add((Element)child);
-               }
-            }
-         }
+         list.add(child);
+         child = ChildElementIterator.findNext(child.getNextSibling(), nsURI, localPart);
       }
       return list;
    }
 
-   private static Iterator getChildElementsIntern(Node node, QName nodeName)
+   private static Iterator<Element> getChildElementsIntern(Node node, QName nodeName)
    {
-      return getChildElementsAsListIntern(node, nodeName).iterator();
+      if (nodeName == null)
+         return new ChildElementIterator(node, null, null);
+
+      return new ChildElementIterator(node, nodeName.getNamespaceURI(), nodeName.getLocalPart());
    }
 
    /** Gets parent element or null if there is none
@@ -578,13 +730,50 @@ public final class DOMUtils
       return (parent instanceof Element ? (Element)parent : null);
    }
 
-   /** Get the owner document that is associated with the current thread */
+   /** Get the owner document that is associated with the current thread.
+    *
+    * This is the document of the innermost open {@link DocumentArena}, if there is one.
+    */
    public static Document getOwnerDocument()
+   {
+      DocumentArena.ArenaState arena = DocumentArena.current();
+      Document doc = (arena != null ? arena.document : null);
+      return (doc != null ? doc : getThreadDocument());
+   }
+
+   /** Open a {@link DocumentArena} that provides the owner document for this thread until it is closed.
+    */
+   public static DocumentArena openDocumentArena()
+   {
+      return DocumentArena.open();
+   }
+
+   // Get the owner document for a node that is about to be created and account for it
+   private static Document getNewNodeOwnerDocument()
+   {
+      DocumentArena.ArenaState arena = DocumentArena.current();
+      Document doc = (arena != null ? arena.document : null);
+      if (doc == null)
+         return getThreadDocument();
+
+      arena.nodeCreated();
+      return doc;
+   }
+
+   private static Document getThreadDocument()
    {
       Document doc = documentThreadLocal.get();
       if (doc == null)
       {
-         doc = getDocumentBuilder().newDocument();
+         DocumentBuilder builder = borrowDocumentBuilder();
+         try
+         {
+            doc = builder.newDocument();
+         }
+         finally
+         {
+            releaseDocumentBuilder(builder);
+         }
          documentThreadLocal.set(doc);
       }
       return doc;
@@ -633,14 +822,14 @@ public final class DOMUtils
             // The fact that JAXBSource derives from SAXSource is an implementation detail.
             // Thus in general applications are strongly discouraged from accessing methods defined on SAXSource.
             // The XMLReader object obtained by the getXMLReader method shall be used only for parsing the InputSource object returned by the getInputSource method.
-
-            TransformerFactory tf = TransformerFactory.newInstance();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
-            Transformer transformer = tf.newTransformer();
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.transform(source, new StreamResult(baos));
-            retElement = DOMUtils.parse(new ByteArrayInputStream(baos.toByteArray()));
+            retElement = transformToElement(source);
+         }
+         else if (staxSourceClass != null && staxSourceClass.isInstance(source))
+         {
+            // A stream reader is read directly, an event reader goes through the transformer
+            retElement = staxSourceToElement(source);
+            if (retElement == null)
+               retElement = transformToElement(source);
          }
          else
          {
@@ -657,4 +846,52 @@ public final class DOMUtils
 
       return retElement;
    }
+
+   // Feed the events of the source straight into a DOM, instead of serializing and parsing them again
+   private static Element transformToElement(Source source) throws TransformerException
+   {
+      Document doc;
+      DocumentBuilder builder = borrowDocumentBuilder();
+      try
+      {
+         doc = builder.newDocument();
+      }
+      finally
+      {
+         releaseDocumentBuilder(builder);
+      }
+
+      Transformer transformer;
+      synchronized (transformerFactory)
+      {
+         transformer = transformerFactory.newTransformer();
+      }
+      transformer.transform(source, new DOMResult(doc));
+      return doc.getDocumentElement();
+   }
+
+   // Build the element of a StAXSource with a stream reader, or return null
+   private static Element staxSourceToElement(Source source) throws IOException
+   {
+      if (staxSourceConverter == null)
+         return null;
+
+      try
+      {
+         return (Element)staxSourceConverter.invoke(null, source);
+      }
+      catch (InvocationTargetException ex)
+      {
+         Throwable cause = ex.getCause();
+         if (cause instanceof IOException)
+            throw (IOException)cause;
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+         throw new RuntimeException("Failed to build element from StAXSource", cause);
+      }
+      catch (IllegalAccessException ex)
+      {
+         throw new RuntimeException("Failed to build element from StAXSource", ex);
+      }
+   }
 }
@@ -58,17 +58,24 @@ package org.jboss.wsf.common;
 // $Id$
 
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.jboss.logging.Logger;
 import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
@@ -83,10 +90,57 @@ import org.w3c.dom.NodeList;
  */
 public class DOMWriter
 {
-   // Print writer
-   private PrintWriter out;
+   // The line separator that is written after the XML declaration
+   static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+   // Canonical attribute lists up to this length are sorted in place
+   private static final int INSERTION_SORT_THRESHOLD = 16;
+   static final Comparator<Attr> CANONICAL_ORDER = new CanonicalAttributeOrder();
+
+   // The chars below this value are looked up in the escape tables
+   private static final int ESCAPE_TABLE_SIZE = 128;
+   // Non zero for the chars that normalize() escapes
+   private static final byte[] ESCAPE_TABLE = new byte[ESCAPE_TABLE_SIZE];
+   private static final byte[] CANONICAL_ESCAPE_TABLE = new byte[ESCAPE_TABLE_SIZE];
+   // The replacement per escaped char
+   private static final String[] ESCAPES = new String[ESCAPE_TABLE_SIZE];
+   private static final String[] CANONICAL_ESCAPES = new String[ESCAPE_TABLE_SIZE];
+   static
+   {
+      ESCAPES['<'] = "&lt;";
+      ESCAPES['>'] = "&gt;";
+      ESCAPES['&'] = "&amp;";
+      ESCAPES['"'] = "&quot;";
+      ESCAPES['\''] = "&apos;";
+      ESCAPES['\r'] = "&#xD;";
+      System.arraycopy(ESCAPES, 0, CANONICAL_ESCAPES, 0, ESCAPE_TABLE_SIZE);
+      CANONICAL_ESCAPES['\n'] = "&#10;";
+
+      for (int i = 0; i < ESCAPE_TABLE_SIZE; i++)
+      {
+         ESCAPE_TABLE[i] = (byte)(ESCAPES[i] != null ? 1 : 0);
+         CANONICAL_ESCAPE_TABLE[i] = (byte)(CANONICAL_ESCAPES[i] != null ? 1 : 0);
+      }
+   }
+
+   // The output
+   private XMLOutput out;
    // True, if canonical output
    private boolean canonical;
+   // True, if exclusive XML canonicalization is used
+   private boolean exclusiveCanonical;
+   // True, if comments are kept in the exclusive canonical form
+   private boolean withComments;
+   // The InclusiveNamespaces prefix list for exclusive canonicalization
+   private String inclusiveNamespaces;
+   // The canonicalizer, created on demand
+   private ExclusiveCanonicalizer canonicalizer;
+   // The maximum number of chars that print() writes, 0 for no limit
+   private int maxLength;
+   // Written where the output is cut
+   private String cutMarker = DEFAULT_CUT_MARKER;
+   // True, if the output of the last print() was cut
+   private boolean truncated;
    // True, if pretty printing should be used
    private boolean prettyprint;
    // True, if the XML declaration should be written
@@ -103,55 +157,237 @@ public class DOMWriter
    private boolean completeNamespaces = true;
    // The current default namespace
    private String currentDefaultNamespace;
+   // The prefixed namespace declarations in scope, innermost last
+   private String[] nsPrefixes = new String[16];
+   private String[] nsURIs = new String[16];
+   private int nsCount;
+   // Declarations below this index are not visible, see ENTITY_REFERENCE_NODE
+   private int nsBarrier;
+   // The namespace declarations above the root node that were looked up
+   private Map<String, String> outerNamespaces;
+   // The nodes that were opened and not yet closed, innermost last
+   private Node[] openNodes = new Node[32];
+   // The namespace scope of an open element, or the namespace barrier of an open entity reference
+   private int[] openScopes = new int[32];
+   // True, if the end marker of the open element is indented
+   private boolean[] openIndents = new boolean[32];
+   private int openCount;
+   // The attributes of the current element in the order in which they are written
+   private Attr[] attrBuffer = new Attr[16];
+   // The prefixes that the current element uses, in order of first use
+   private String[] usedPrefixes = new String[8];
+   private String[] usedURIs = new String[8];
+   private int usedCount;
+
+   // Written where the output is cut, unless another marker is set
+   private static final String DEFAULT_CUT_MARKER = "...";
+
+   // The writer that printNode uses on the current thread
+   private static ThreadLocal<DOMWriter> printNodeWriter = new ThreadLocal<DOMWriter>();
+   // The initial and the maximum retained size of the printNode buffer
+   private static final int PRINT_NODE_BUFFER_SIZE = 1024;
+   private static final int PRINT_NODE_BUFFER_MAX_SIZE = 64 * 1024;
+   // True, while printNode uses this writer
+   private boolean inUse;
+
+   // Smaller elements are printed sequentially
+   private static final int PARALLEL_MIN_NODES = 4096;
+   // The number of chunks per processor that the children of an element are split into
+   private static final int CHUNKS_PER_PROCESSOR = 4;
+   // Prints the children of the root element in parallel, null for sequential printing
+   private ExecutorService executor;
+   // The element whose children are printed in parallel
+   private Node parallelElement;
 
    public DOMWriter(Writer w)
    {
-      this.out = new PrintWriter(w);
+      this.out = new XMLOutput.WriterOutput(w);
    }
 
    public DOMWriter(Writer w, String charsetName)
    {
-      this.out = new PrintWriter(w);
+      this.out = new XMLOutput.WriterOutput(w);
       this.charsetName = charsetName;
       this.writeXMLDeclaration = true;
    }
 
+   /**
+    * Write UTF-8 encoded bytes to the given stream
+    */
    public DOMWriter(OutputStream stream)
    {
-      try
+      this.out = new XMLOutput.ByteOutput(stream, "UTF-8");
+   }
+
+   /**
+    * Write bytes in the given encoding to the given stream
+    */
+   public DOMWriter(OutputStream stream, String charsetName)
+   {
+      this.out = new XMLOutput.ByteOutput(stream, charsetName);
+      this.charsetName = charsetName;
+      this.writeXMLDeclaration = true;
+   }
+
+   /**
+    * Write bytes in the given encoding to the given channel
+    */
+   public DOMWriter(WritableByteChannel channel, String charsetName)
+   {
+      this.out = new XMLOutput.ByteOutput(channel, charsetName);
+      this.charsetName = charsetName;
+      this.writeXMLDeclaration = true;
+   }
+
+   /**
+    * Update the given digest with the UTF-8 encoded bytes.
+    * Together with {@link #setExclusiveCanonical(boolean)} this computes the digest
+    * of the canonical form without creating it in memory.
+    */
+   public DOMWriter(MessageDigest digest)
+   {
+      this.out = new XMLOutput.ByteOutput(digest, "UTF-8");
+   }
+
+   private DOMWriter(XMLOutput out)
+   {
+      this.out = out;
+   }
+
+   /** 
+    * Print a node with explicit prettyprinting.
+    * The defaults for all other DOMWriter properties apply. 
+    *  
+    */
+   public static String printNode(Node node, boolean prettyprint)
+   {
+      return printNodeAsCharSequence(node, prettyprint, 0).toString();
+   }
+
+   /**
+    * Print a node with explicit prettyprinting and at most maxLength characters.
+    * The output of a larger node is cut and ends with "...".
+    */
+   public static String printNode(Node node, boolean prettyprint, int maxLength)
+   {
+      return printNodeAsCharSequence(node, prettyprint, maxLength).toString();
+   }
+
+   /**
+    * Get an object that prints the node when its toString() is called.
+    * Log messages that are not written do not pay for the printing.
+    * 
+    * <pre>
+    * log.debug(DOMWriter.printNodeLazily(envelope, true, 4096));
+    * </pre>
+    */
+   public static Object printNodeLazily(Node node, boolean prettyprint, int maxLength)
+   {
+      return new LazyPrint(node, prettyprint, maxLength);
+   }
+
+   /**
+    * Print a node with explicit prettyprinting, without copying the result into a String.
+    * The returned buffer belongs to the current thread and is only valid until the next call.
+    */
+   public static CharSequence printNodeAsCharSequence(Node node, boolean prettyprint)
+   {
+      return printNodeAsCharSequence(node, prettyprint, 0);
+   }
+
+   /**
+    * Print a node with explicit prettyprinting and at most maxLength characters, without copying the result into a String.
+    * The returned buffer belongs to the current thread and is only valid until the next call.
+    */
+   public static CharSequence printNodeAsCharSequence(Node node, boolean prettyprint, int maxLength)
+   {
+      DOMWriter writer = printNodeWriter.get();
+      if (writer == null || writer.inUse)
       {
-         this.out = new PrintWriter(new OutputStreamWriter(stream, "UTF-8"));
+         // First use on this thread, or called while a node is printed
+         writer = new DOMWriter(new XMLOutput.BufferOutput(new StringBuilder(PRINT_NODE_BUFFER_SIZE)));
+         if (printNodeWriter.get() == null)
+            printNodeWriter.set(writer);
       }
-      catch (UnsupportedEncodingException e)
+      else
       {
-         // ignore, UTF-8 should be available
+         ((XMLOutput.BufferOutput)writer.out).getBuffer().setLength(0);
+         writer.resetState();
       }
-   }
 
-   public DOMWriter(OutputStream stream, String charsetName)
-   {
+      StringBuilder buffer = ((XMLOutput.BufferOutput)writer.out).getBuffer();
+      writer.inUse = true;
       try
       {
-         this.out = new PrintWriter(new OutputStreamWriter(stream, charsetName));
-         this.charsetName = charsetName;
-         this.writeXMLDeclaration = true;
+         writer.setPrettyprint(prettyprint).setMaxLength(maxLength).print(node);
       }
-      catch (UnsupportedEncodingException e)
+      finally
       {
-         throw new IllegalArgumentException("Unsupported encoding: " + charsetName);
+         writer.inUse = false;
+         // Do not keep a large buffer with the thread, the caller gets the last one
+         if (buffer.capacity() > PRINT_NODE_BUFFER_MAX_SIZE)
+            writer.out = new XMLOutput.BufferOutput(new StringBuilder(PRINT_NODE_BUFFER_SIZE));
       }
+      return buffer;
    }
 
-   /** 
-    * Print a node with explicit prettyprinting.
-    * The defaults for all other DOMWriter properties apply. 
-    *  
+   /** Drop the writer of printNodeAsCharSequence for the current thread
     */
-   public static String printNode(Node node, boolean prettyprint)
+   static void clearThreadLocal()
+   {
+      printNodeWriter.remove();
+   }
+
+   /**
+    * Write to the given writer. The output properties are kept, 
+    * the explicit character set encoding is cleared.
+    */
+   public DOMWriter reset(Writer w)
+   {
+      this.out = new XMLOutput.WriterOutput(w);
+      this.charsetName = null;
+      resetState();
+      return this;
+   }
+
+   /**
+    * Write UTF-8 encoded bytes to the given stream. The output properties are kept,
+    * the explicit character set encoding is cleared.
+    */
+   public DOMWriter reset(OutputStream stream)
+   {
+      resetStream(stream, "UTF-8");
+      this.charsetName = null;
+      return this;
+   }
+
+   /**
+    * Write bytes in the given encoding to the given stream. The output properties are kept.
+    */
+   public DOMWriter reset(OutputStream stream, String charsetName)
+   {
+      resetStream(stream, charsetName);
+      this.charsetName = charsetName;
+      return this;
+   }
+
+   private void resetStream(OutputStream stream, String charsetName)
+   {
+      // Keep the byte buffer if the encoding does not change
+      if (out instanceof XMLOutput.ByteOutput && ((XMLOutput.ByteOutput)out).isCharset(charsetName))
+         ((XMLOutput.ByteOutput)out).reset(stream);
+      else
+         out = new XMLOutput.ByteOutput(stream, charsetName);
+
+      resetState();
+   }
+
+   // Start over as a new writer with the same properties
+   private void resetState()
    {
-      StringWriter strw = new StringWriter();
-      new DOMWriter(strw).setPrettyprint(prettyprint).print(node);
-      return strw.toString();
+      wroteXMLDeclaration = false;
+      prettyIndent = 0;
+      currentDefaultNamespace = null;
    }
 
    public boolean isCanonical()
@@ -169,6 +405,44 @@ public class DOMWriter
       return this;
    }
 
+   public boolean isExclusiveCanonical()
+   {
+      return exclusiveCanonical;
+   }
+
+   /**
+    * Set wheter the Exclusive XML Canonicalization 1.0 form without comments is written.
+    * All other output properties are ignored in this mode.
+    * The default is false.
+    */
+   public DOMWriter setExclusiveCanonical(boolean exclusive)
+   {
+      return setExclusiveCanonical(exclusive, false);
+   }
+
+   /**
+    * Set wheter the Exclusive XML Canonicalization 1.0 form is written, with or without comments.
+    */
+   public DOMWriter setExclusiveCanonical(boolean exclusive, boolean withComments)
+   {
+      this.exclusiveCanonical = exclusive;
+      this.withComments = withComments;
+      this.canonicalizer = null;
+      return this;
+   }
+
+   /**
+    * Set the whitespace separated InclusiveNamespaces prefix list for exclusive canonicalization.
+    * The declarations of these prefixes are written like in inclusive canonicalization,
+    * '#default' stands for the default namespace.
+    */
+   public DOMWriter setInclusiveNamespaces(String prefixList)
+   {
+      this.inclusiveNamespaces = prefixList;
+      this.canonicalizer = null;
+      return this;
+   }
+
    /**
     * Set wheter subelements should have their namespaces completed.
     * Setting this to false may lead to invalid XML fragments.
@@ -195,6 +469,60 @@ public class DOMWriter
       return this;
    }
 
+   public int getMaxLength()
+   {
+      return maxLength;
+   }
+
+   /**
+    * Set the maximum number of characters that print() writes.
+    * Larger output is cut and ends with "...". A value of 0 means no limit.
+    * The default is no limit.
+    */
+   public DOMWriter setMaxLength(int maxLength)
+   {
+      return setMaxLength(maxLength, DEFAULT_CUT_MARKER);
+   }
+
+   /**
+    * Set the maximum number of characters that print() writes and the marker that ends cut output.
+    * The marker is not counted.
+    */
+   public DOMWriter setMaxLength(int maxLength, String cutMarker)
+   {
+      this.maxLength = Math.max(maxLength, 0);
+      this.cutMarker = cutMarker;
+      return this;
+   }
+
+   /**
+    * True, if the output of the last print() was cut because it reached the maximum length
+    */
+   public boolean isTruncated()
+   {
+      return truncated;
+   }
+
+   public ExecutorService getExecutor()
+   {
+      return executor;
+   }
+
+   /**
+    * Set the executor that prints the children of the root element in parallel.
+    * The children are split into chunks of about the same number of nodes, which are
+    * printed to buffers and written in document order. The output is the same as with
+    * sequential printing. The DOM must not be modified while it is printed.
+    *
+    * Parallel printing is not used for exclusive canonicalization, with a maximum length,
+    * on a single processor, or for elements with less than 4096 nodes. The default is null, which prints sequentially.
+    */
+   public DOMWriter setExecutor(ExecutorService executor)
+   {
+      this.executor = executor;
+      return this;
+   }
+
    public boolean isWriteXMLDeclaration()
    {
       return writeXMLDeclaration;
@@ -213,14 +541,53 @@ public class DOMWriter
    public void print(Node node)
    {
       rootNode = node;
-      printInternal(node, false);
+      nsCount = 0;
+      nsBarrier = 0;
+      openCount = 0;
+      if (outerNamespaces != null)
+         outerNamespaces.clear();
+
+      truncated = false;
+      XMLOutput target = out;
+      if (maxLength > 0)
+         out = new XMLOutput.LimitedOutput(target, maxLength, cutMarker);
+
+      try
+      {
+         if (node != null)
+            printRoot(node);
+      }
+      catch (XMLOutput.LimitReachedException ex)
+      {
+         // Forget the elements that remain open
+         truncated = true;
+         Arrays.fill(openNodes, 0, openCount, null);
+         openCount = 0;
+         prettyIndent = 0;
+      }
+      finally
+      {
+         out = target;
+         parallelElement = null;
+         // Do not keep the printed document
+         rootNode = null;
+         if (outerNamespaces != null)
+            outerNamespaces.clear();
+      }
+      out.flush();
+
+      // Do not keep the nodes of the last element
+      Arrays.fill(attrBuffer, null);
    }
 
-   private void printInternal(Node node, boolean indentEndMarker)
+   private void printRoot(Node node)
    {
-      // is there anything to do?
-      if (node == null)
+      if (exclusiveCanonical)
       {
+         if (canonicalizer == null)
+            canonicalizer = new ExclusiveCanonicalizer(withComments, inclusiveNamespaces);
+
+         canonicalizer.canonicalize(node, out);
          return;
       }
 
@@ -229,144 +596,417 @@ public class DOMWriter
 
       if (wroteXMLDeclaration == false && writeXMLDeclaration == true && canonical == false)
       {
-         out.print("<?xml version='1.0'");
+         out.write("<?xml version='1.0'");
          if (charsetName != null)
-            out.print(" encoding='" + charsetName + "'");
+         {
+            out.write(" encoding='");
+            out.write(charsetName);
+            out.write('\'');
+         }
 
-         out.print("?>");
+         out.write("?>");
          if (prettyprint)
-            out.println();
+            out.write(LINE_SEPARATOR);
 
          wroteXMLDeclaration = true;
       }
 
-      int type = node.getNodeType();
-      boolean hasChildNodes = node.getChildNodes().getLength() > 0;
+      if (executor != null && maxLength == 0)
+      {
+         if (node instanceof Document)
+            parallelElement = ((Document)node).getDocumentElement();
+         else if (node instanceof Element)
+            parallelElement = node;
+      }
+
+      printInternal(node);
+   }
 
+   /**
+    * Flush the output and check its error state.
+    * Like a PrintWriter, DOMWriter does not throw IOExceptions.
+    */
+   public boolean checkError()
+   {
+      return out.checkError();
+   }
+
+   /**
+    * Print a node and its descendants in document order.
+    * The traversal does not recurse, the open nodes are kept on an explicit stack.
+    */
+   private void printInternal(Node root)
+   {
+      Node node = root;
+      while (true)
+      {
+         if (printStart(node))
+         {
+            Node child = node.getFirstChild();
+            if (node == parallelElement && printChildrenInParallel(node))
+               child = null;
+
+            if (child != null)
+            {
+               node = child;
+               continue;
+            }
+            printEnd();
+         }
+
+         // Continue with the next sibling and close the nodes that have no more children
+         while (true)
+         {
+            if (node == root)
+               return;
+
+            Node next = node.getNextSibling();
+            if (next != null)
+            {
+               node = next;
+               break;
+            }
+
+            node = openNodes[openCount - 1];
+            printEnd();
+         }
+      }
+   }
+
+   /**
+    * Print the children of the opened element in chunks on the executor and write the chunks in order.
+    * Returns false if the element is too small to be split.
+    */
+   private boolean printChildrenInParallel(Node element)
+   {
+      int processors = Runtime.getRuntime().availableProcessors();
+      if (processors < 2)
+         return false;
+
+      int childCount = 0;
+      for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+         childCount++;
+
+      // Walk the children before other threads read them. This expands a deferred DOM
+      // and finds the default namespace that sequential printing has at each child.
+      int[] sizes = new int[childCount];
+      String[] defaultNamespaces = new String[childCount];
+      String defaultNamespace = currentDefaultNamespace;
+      int totalSize = 0;
+      int index = 0;
+      for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         defaultNamespaces[index] = defaultNamespace;
+         defaultNamespace = scanSubtree(child, defaultNamespace, sizes, index);
+         totalSize += sizes[index];
+         index++;
+      }
+
+      int chunkCount = Math.min(childCount, CHUNKS_PER_PROCESSOR * processors);
+      if (totalSize < PARALLEL_MIN_NODES || chunkCount < 2)
+         return false;
+
+      // Outer namespaces are looked up on the ancestors of the root
+      for (Node parent = rootNode.getParentNode(); parent instanceof Element; parent = parent.getParentNode())
+         scanAttributes(parent);
+
+      List<Future<String>> chunks = new ArrayList<Future<String>>(chunkCount);
+      try
+      {
+         int chunkSize = (totalSize + chunkCount - 1) / chunkCount;
+         Node first = element.getFirstChild();
+         int firstIndex = 0;
+         int size = 0;
+         index = 0;
+         for (Node child = first; child != null; child = child.getNextSibling())
+         {
+            size += sizes[index++];
+            if (size >= chunkSize || index == childCount)
+            {
+               DOMWriter writer = newChunkWriter(defaultNamespaces[firstIndex]);
+               chunks.add(executor.submit(new PrintChunk(writer, first, index - firstIndex)));
+               first = child.getNextSibling();
+               firstIndex = index;
+               size = 0;
+            }
+         }
+
+         for (Future<String> chunk : chunks)
+            out.write(chunk.get());
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while printing node", ex);
+      }
+      catch (ExecutionException ex)
+      {
+         Throwable cause = ex.getCause();
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+         if (cause instanceof Error)
+            throw (Error)cause;
+
+         throw new RuntimeException("Failed to print node", cause);
+      }
+      finally
+      {
+         for (Future<String> chunk : chunks)
+            chunk.cancel(false);
+      }
+
+      currentDefaultNamespace = defaultNamespace;
+      return true;
+   }
+
+   /**
+    * Read the nodes of a subtree that printing reads, store their number
+    * and return the current default namespace after the subtree is printed.
+    */
+   private String scanSubtree(Node root, String defaultNamespace, int[] sizes, int index)
+   {
+      int size = 0;
+      Node node = root;
+      while (true)
+      {
+         size++;
+         node.getNodeValue();
+
+         boolean descend = false;
+         int type = node.getNodeType();
+         if (type == Node.ELEMENT_NODE)
+         {
+            String atValue = scanAttributes(node);
+            if (atValue != null)
+               defaultNamespace = normalize(atValue, canonical);
+
+            // See printStart()
+            String elNamespaceURI = node.getNamespaceURI();
+            if (node.getPrefix() == null && elNamespaceURI != null)
+            {
+               if ((atValue == null || atValue.length() == 0) && !elNamespaceURI.equals(defaultNamespace))
+                  defaultNamespace = elNamespaceURI;
+            }
+            descend = true;
+         }
+         else if (type == Node.ENTITY_REFERENCE_NODE)
+         {
+            descend = canonical;
+         }
+
+         Node next = (descend ? node.getFirstChild() : null);
+         while (next == null)
+         {
+            if (node == root)
+            {
+               sizes[index] = size;
+               return defaultNamespace;
+            }
+
+            next = node.getNextSibling();
+            if (next == null)
+               node = node.getParentNode();
+         }
+         node = next;
+      }
+   }
+
+   // Read the attributes of an element and return the value of its xmlns attribute
+   private static String scanAttributes(Node element)
+   {
+      String defaultNamespace = null;
+      NamedNodeMap attrs = element.getAttributes();
+      for (int i = 0, len = attrs.getLength(); i < len; i++)
+      {
+         Node attr = attrs.item(i);
+         String atValue = attr.getNodeValue();
+         if (attr.getNodeName().equals("xmlns"))
+            defaultNamespace = atValue;
+
+         attr.getPrefix();
+         attr.getLocalName();
+      }
+      return defaultNamespace;
+   }
+
+   // A writer that prints children of the opened element with the current namespace scope
+   private DOMWriter newChunkWriter(String defaultNamespace)
+   {
+      DOMWriter writer = new DOMWriter(new XMLOutput.BufferOutput(new StringBuilder(PRINT_NODE_BUFFER_SIZE)));
+      writer.canonical = canonical;
+      writer.prettyprint = prettyprint;
+      writer.completeNamespaces = completeNamespaces;
+      writer.prettyIndent = prettyIndent;
+      writer.rootNode = rootNode;
+      writer.currentDefaultNamespace = defaultNamespace;
+      if (nsCount > writer.nsPrefixes.length)
+      {
+         writer.nsPrefixes = new String[nsCount];
+         writer.nsURIs = new String[nsCount];
+      }
+      System.arraycopy(nsPrefixes, 0, writer.nsPrefixes, 0, nsCount);
+      System.arraycopy(nsURIs, 0, writer.nsURIs, 0, nsCount);
+      writer.nsCount = nsCount;
+      writer.nsBarrier = nsBarrier;
+      return writer;
+   }
+
+   /**
+    * Prints consecutive siblings to the buffer of a chunk writer
+    */
+   private static final class PrintChunk implements Callable<String>
+   {
+      private final DOMWriter writer;
+      private final Node first;
+      private final int count;
+
+      PrintChunk(DOMWriter writer, Node first, int count)
+      {
+         this.writer = writer;
+         this.first = first;
+         this.count = count;
+      }
+
+      public String call()
+      {
+         Node node = first;
+         for (int i = 0; i < count; i++)
+         {
+            writer.printInternal(node);
+            node = node.getNextSibling();
+         }
+         return ((XMLOutput.BufferOutput)writer.out).getBuffer().toString();
+      }
+   }
+
+   /**
+    * Print the start of a node.
+    * Returns true if the node was opened, its children are printed next and printEnd() closes it.
+    */
+   private boolean printStart(Node node)
+   {
+      int type = node.getNodeType();
       String nodeName = node.getNodeName();
       switch (type)
       {
          // print document
          case Node.DOCUMENT_NODE:
          {
-            NodeList children = node.getChildNodes();
-            for (int iChild = 0; iChild < children.getLength(); iChild++)
-            {
-               printInternal(children.item(iChild), false);
-            }
-            out.flush();
-            break;
+            openNode(node, 0, false);
+            return true;
          }
 
             // print element with attributes
          case Node.ELEMENT_NODE:
          {
-            Element element = (Element)node;
             if (prettyprint)
             {
                for (int i = 0; i < prettyIndent; i++)
                {
-                  out.print(' ');
+                  out.write(' ');
                }
                prettyIndent++;
             }
 
-            out.print('<');
-            out.print(nodeName);
+            out.write('<');
+            out.write(nodeName);
+
+            int nsScope = nsCount;
+            Attr attrs[] = attrBuffer;
+            int attrCount = orderAttributes(node.getAttributes());
+            for (int i = 0; i < attrCount; i++)
+            {
+               String atName = attrs[i].getNodeName();
+               if (atName.startsWith("xmlns:"))
+                  pushNamespace(atName.substring(6), attrs[i].getNodeValue());
+            }
 
-            Map nsMap = new HashMap();
+            usedCount = 0;
             String elPrefix = node.getPrefix();
             String elNamespaceURI = node.getNamespaceURI();
             if (elPrefix != null)
             {
-               String nsURI = getNamespaceURI(elPrefix, element, rootNode);
-               nsMap.put(elPrefix, nsURI);
+               String nsURI = lookupNamespaceURI(elPrefix, false);
+               usePrefix(elPrefix, nsURI);
             }
 
-            Attr attrs[] = sortAttributes(node.getAttributes());
-            for (int i = 0; i < attrs.length; i++)
+            String defaultNamespace = "";
+            for (int i = 0; i < attrCount; i++)
             {
                Attr attr = attrs[i];
                String atPrefix = attr.getPrefix();
                String atName = attr.getNodeName();
-               String atValue = normalize(attr.getNodeValue(), canonical);
+               String atValue = attr.getNodeValue();
 
                if (atName.equals("xmlns"))
-                  currentDefaultNamespace = atValue;
+               {
+                  defaultNamespace = atValue;
+                  currentDefaultNamespace = normalize(atValue, canonical);
+               }
 
                if (atPrefix != null && !atPrefix.equals("xmlns") && !atPrefix.equals("xml"))
                {
-                  String nsURI = getNamespaceURI(atPrefix, element, rootNode);
-                  nsMap.put(atPrefix, nsURI);
+                  String nsURI = lookupNamespaceURI(atPrefix, false);
+                  usePrefix(atPrefix, nsURI);
                   // xsi:type='ns1:SubType', xsi:type='xsd:string'
                   if (atName.equals(atPrefix + ":type") && atValue.indexOf(":") > 0)
                   {
+                     String typeValue = normalize(atValue, canonical);
                      // xsi defined on the envelope
                      if (nsURI == null)
-                        nsURI = getNamespaceURI(atPrefix, element, null);
+                        nsURI = lookupNamespaceURI(atPrefix, true);
 
                      if ("http://www.w3.org/2001/XMLSchema-instance".equals(nsURI))
                      {
-                        String typePrefix = atValue.substring(0, atValue.indexOf(":"));
-                        String typeURI = getNamespaceURI(typePrefix, element, rootNode);
-                        nsMap.put(typePrefix, typeURI);
+                        String typePrefix = typeValue.substring(0, typeValue.indexOf(":"));
+                        String typeURI = lookupNamespaceURI(typePrefix, false);
+                        usePrefix(typePrefix, typeURI);
                      }
                   }
                }
 
-               out.print(" " + atName + "='" + atValue + "'");
+               out.write(' ');
+               out.write(atName);
+               out.write("='");
+               writeNormalized(atValue);
+               out.write('\'');
             }
 
             // Add namespace declaration for prefixes 
             // that are defined further up the tree
             if (completeNamespaces)
             {
-               Iterator itPrefix = nsMap.keySet().iterator();
-               while (itPrefix.hasNext())
-               {
-                  String prefix = (String)itPrefix.next();
-                  String nsURI = (String)nsMap.get(prefix);
-                  if (nsURI == null)
-                  {
-                     nsURI = getNamespaceURI(prefix, element, null);
-                     out.print(" xmlns:" + prefix + "='" + nsURI + "'");
-                  }
-               }
+               completeNamespaces();
             }
 
             // The SAX ContentHandler will by default not add the namespace declaration 
             // <Hello xmlns='http://somens'>World</Hello>
             if (elPrefix == null && elNamespaceURI != null)
             {
-               String defaultNamespace = element.getAttribute("xmlns");
                if (defaultNamespace.length() == 0 && !elNamespaceURI.equals(currentDefaultNamespace))
                {
-                  out.print(" xmlns='" + elNamespaceURI + "'");
+                  out.write(" xmlns='");
+                  out.write(elNamespaceURI);
+                  out.write('\'');
                   currentDefaultNamespace = elNamespaceURI;
                }
             }
 
-            if (hasChildNodes)
+            if (node.getFirstChild() != null)
             {
-               out.print('>');
+               out.write('>');
             }
 
             // Find out if the end marker is indented
-            indentEndMarker = isEndMarkerIndented(node);
+            boolean indentEndMarker = isEndMarkerIndented(node);
 
             if (indentEndMarker)
             {
-               out.print('\n');
+               out.write('\n');
             }
 
-            NodeList childNodes = node.getChildNodes();
-            int len = childNodes.getLength();
-            for (int i = 0; i < len; i++)
-            {
-               Node childNode = childNodes.item(i);
-               printInternal(childNode, false);
-            }
-            break;
+            openNode(node, nsScope, indentEndMarker);
+            return true;
          }
 
             // handle entity reference nodes
@@ -374,21 +1014,16 @@ public class DOMWriter
          {
             if (canonical)
             {
-               NodeList children = node.getChildNodes();
-               if (children != null)
-               {
-                  int len = children.getLength();
-                  for (int i = 0; i < len; i++)
-                  {
-                     printInternal(children.item(i), false);
-                  }
-               }
+               // Namespace lookups do not pass the entity reference
+               openNode(node, nsBarrier, false);
+               nsBarrier = nsCount;
+               return true;
             }
             else
             {
-               out.print('&');
-               out.print(nodeName);
-               out.print(';');
+               out.write('&');
+               out.write(nodeName);
+               out.write(';');
             }
             break;
          }
@@ -398,13 +1033,13 @@ public class DOMWriter
          {
             if (canonical)
             {
-               out.print(normalize(node.getNodeValue(), canonical));
+               writeNormalized(node.getNodeValue());
             }
             else
             {
-               out.print("<![CDATA[");
-               out.print(node.getNodeValue());
-               out.print("]]>");
+               out.write("<![CDATA[");
+               out.write(node.getNodeValue());
+               out.write("]]>");
             }
             break;
          }
@@ -412,24 +1047,24 @@ public class DOMWriter
             // print text
          case Node.TEXT_NODE:
          {
-            String text = normalize(node.getNodeValue(), canonical);
-            if (prettyprint == false || text.trim().length() > 0)
-               out.print(text);
+            String text = node.getNodeValue();
+            if (prettyprint == false || isBlank(text, canonical) == false)
+               writeNormalized(text);
             break;
          }
 
             // print processing instruction
          case Node.PROCESSING_INSTRUCTION_NODE:
          {
-            out.print("<?");
-            out.print(nodeName);
+            out.write("<?");
+            out.write(nodeName);
             String data = node.getNodeValue();
             if (data != null && data.length() > 0)
             {
-               out.print(' ');
-               out.print(data);
+               out.write(' ');
+               out.write(data);
             }
-            out.print("?>");
+            out.write("?>");
             break;
          }
 
@@ -438,64 +1073,219 @@ public class DOMWriter
          {
             for (int i = 0; i < prettyIndent; i++)
             {
-               out.print(' ');
+               out.write(' ');
             }
 
-            out.print("<!--");
+            out.write("<!--");
             String data = node.getNodeValue();
             if (data != null)
             {
-               out.print(data);
+               out.write(data);
             }
-            out.print("-->");
+            out.write("-->");
 
             if (prettyprint)
             {
-               out.print('\n');
+               out.write('\n');
             }
 
             break;
          }
       }
+      return false;
+   }
+
+   /**
+    * Print the end of the innermost open node and close it
+    */
+   private void printEnd()
+   {
+      int index = --openCount;
+      Node node = openNodes[index];
+      openNodes[index] = null;
 
+      int type = node.getNodeType();
       if (type == Node.ELEMENT_NODE)
       {
          if (prettyprint)
             prettyIndent--;
 
-         if (hasChildNodes == false)
+         if (node.getFirstChild() == null)
          {
-            out.print("/>");
+            out.write("/>");
          }
          else
          {
-            if (indentEndMarker)
+            if (openIndents[index])
             {
                for (int i = 0; i < prettyIndent; i++)
                {
-                  out.print(' ');
+                  out.write(' ');
                }
             }
 
-            out.print("</");
-            out.print(nodeName);
-            out.print('>');
+            out.write("</");
+            out.write(node.getNodeName());
+            out.write('>');
          }
 
          if (prettyIndent > 0)
          {
-            out.print('\n');
+            out.write('\n');
          }
+
+         // Pop the namespace declarations of this element
+         nsCount = openScopes[index];
       }
-      out.flush();
+      else if (type == Node.ENTITY_REFERENCE_NODE)
+      {
+         nsBarrier = openScopes[index];
+      }
+   }
+
+   private void openNode(Node node, int scope, boolean indentEndMarker)
+   {
+      if (openCount == openNodes.length)
+      {
+         Node[] nodes = new Node[openCount * 2];
+         System.arraycopy(openNodes, 0, nodes, 0, openCount);
+         openNodes = nodes;
+         int[] scopes = new int[openCount * 2];
+         System.arraycopy(openScopes, 0, scopes, 0, openCount);
+         openScopes = scopes;
+         boolean[] indents = new boolean[openCount * 2];
+         System.arraycopy(openIndents, 0, indents, 0, openCount);
+         openIndents = indents;
+      }
+      openNodes[openCount] = node;
+      openScopes[openCount] = scope;
+      openIndents[openCount] = indentEndMarker;
+      openCount++;
+   }
+
+   private void pushNamespace(String prefix, String nsURI)
+   {
+      // An empty declaration does not hide the outer one
+      if (nsURI.length() == 0)
+         return;
+
+      if (nsCount == nsPrefixes.length)
+      {
+         nsPrefixes = grow(nsPrefixes);
+         nsURIs = grow(nsURIs);
+      }
+      nsPrefixes[nsCount] = prefix;
+      nsURIs[nsCount] = nsURI;
+      nsCount++;
+   }
+
+   /**
+    * Get the namespace URI that is declared for the given prefix on the current element or its ancestors.
+    * Unless beyondRoot is true, declarations above the node that started the write are ignored.
+    */
+   private String lookupNamespaceURI(String prefix, boolean beyondRoot)
+   {
+      for (int i = nsCount - 1; i >= nsBarrier; i--)
+      {
+         if (prefix.equals(nsPrefixes[i]))
+            return nsURIs[i];
+      }
+
+      if (beyondRoot == false || nsBarrier > 0)
+         return null;
+
+      Node parent = rootNode.getParentNode();
+      if ((rootNode instanceof Element) == false || (parent instanceof Element) == false)
+         return null;
+
+      if (outerNamespaces == null)
+         outerNamespaces = new HashMap<String, String>();
+      else if (outerNamespaces.containsKey(prefix))
+         return outerNamespaces.get(prefix);
+
+      String nsURI = getNamespaceURI(prefix, (Element)parent);
+      outerNamespaces.put(prefix, nsURI);
+      return nsURI;
+   }
+
+   private void usePrefix(String prefix, String nsURI)
+   {
+      for (int i = 0; i < usedCount; i++)
+      {
+         if (prefix.equals(usedPrefixes[i]))
+         {
+            usedURIs[i] = nsURI;
+            return;
+         }
+      }
+
+      if (usedCount == usedPrefixes.length)
+      {
+         usedPrefixes = grow(usedPrefixes);
+         usedURIs = grow(usedURIs);
+      }
+      usedPrefixes[usedCount] = prefix;
+      usedURIs[usedCount] = nsURI;
+      usedCount++;
    }
 
-   private String getNamespaceURI(String prefix, Element element, Node stopNode)
+   // Add namespace declarations for the used prefixes that are not declared within the root node
+   private void completeNamespaces()
+   {
+      int missing = 0;
+      for (int i = 0; i < usedCount; i++)
+      {
+         if (usedURIs[i] == null)
+            missing++;
+      }
+
+      if (missing == 1)
+      {
+         for (int i = 0; i < usedCount; i++)
+         {
+            if (usedURIs[i] == null)
+               writeNamespaceDeclaration(usedPrefixes[i]);
+         }
+      }
+      else if (missing > 1)
+      {
+         // Keep the order in which previous versions wrote the declarations
+         Map<String, String> nsMap = new HashMap<String, String>();
+         for (int i = 0; i < usedCount; i++)
+            nsMap.put(usedPrefixes[i], usedURIs[i]);
+
+         Iterator<Map.Entry<String, String>> it = nsMap.entrySet().iterator();
+         while (it.hasNext())
+         {
+            Map.Entry<String, String> entry = it.next();
+            if (entry.getValue() == null)
+               writeNamespaceDeclaration(entry.getKey());
+         }
+      }
+   }
+
+   private void writeNamespaceDeclaration(String prefix)
+   {
+      out.write(" xmlns:");
+      out.write(prefix);
+      out.write("='");
+      out.write(lookupNamespaceURI(prefix, true));
+      out.write('\'');
+   }
+
+   static String[] grow(String[] array)
+   {
+      String[] copy = new String[array.length * 2];
+      System.arraycopy(array, 0, copy, 0, array.length);
+      return copy;
+   }
+
+   private String getNamespaceURI(String prefix, Element element)
    {
       Node parent = element.getParentNode();
       String nsURI = element.getAttribute("xmlns:" + prefix);
-      if (nsURI.length() == 0 && element != stopNode && parent instanceof Element)
-         return getNamespaceURI(prefix, (Element)parent, stopNode);
+      if (nsURI.length() == 0 && parent instanceof Element)
+         return getNamespaceURI(prefix, (Element)parent);
 
       return (nsURI.length() > 0 ? nsURI : null);
    }
@@ -504,12 +1294,9 @@ public class DOMWriter
    {
       if (prettyprint)
       {
-         NodeList childNodes = node.getChildNodes();
-         int len = childNodes.getLength();
-         for (int i = 0; i < len; i++)
+         for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
          {
-            Node children = childNodes.item(i);
-            if (children.getNodeType() == Node.ELEMENT_NODE)
+            if (child.getNodeType() == Node.ELEMENT_NODE)
             {
                return true;
             }
@@ -518,97 +1305,192 @@ public class DOMWriter
       return false;
    }
 
-   /** Returns a sorted list of attributes. */
-   private Attr[] sortAttributes(NamedNodeMap attrs)
+   /**
+    * Copy the attributes to attrBuffer in the order in which they are written and return their number.
+    * Attributes keep their document order, unless canonical output is requested.
+    */
+   private int orderAttributes(NamedNodeMap attrs)
    {
-
       int len = (attrs != null) ? attrs.getLength() : 0;
-      Attr array[] = new Attr[len];
+      if (len > attrBuffer.length)
+         attrBuffer = new Attr[Math.max(len, attrBuffer.length * 2)];
+
+      Attr[] array = attrBuffer;
       for (int i = 0; i < len; i++)
       {
          array[i] = (Attr)attrs.item(i);
       }
-      for (int i = 0; i < len - 1; i++)
+
+      if (canonical)
       {
-         String name = array[i].getNodeName();
-         int index = i;
-         for (int j = i + 1; j < len; j++)
+         if (len > INSERTION_SORT_THRESHOLD)
+         {
+            Arrays.sort(array, 0, len, CANONICAL_ORDER);
+         }
+         else
          {
-            String curName = array[j].getNodeName();
-            if (curName.compareTo(name) < 0)
+            for (int i = 1; i < len; i++)
             {
-               name = curName;
-               index = j;
+               Attr attr = array[i];
+               int j = i;
+               while (j > 0 && CANONICAL_ORDER.compare(array[j - 1], attr) > 0)
+               {
+                  array[j] = array[j - 1];
+                  j--;
+               }
+               array[j] = attr;
             }
          }
-         if (index != i)
+      }
+      return len;
+   }
+
+   /**
+    * The attribute order of Canonical XML: namespace declarations sorted by prefix, with the default
+    * namespace first, followed by the attributes sorted by namespace URI and then local name.
+    */
+   private static class CanonicalAttributeOrder implements Comparator<Attr>
+   {
+      public int compare(Attr a1, Attr a2)
+      {
+         String prefix1 = declaredPrefix(a1);
+         String prefix2 = declaredPrefix(a2);
+         if (prefix1 != null || prefix2 != null)
+         {
+            if (prefix1 == null)
+               return 1;
+            if (prefix2 == null)
+               return -1;
+
+            return prefix1.compareTo(prefix2);
+         }
+
+         int result = namespaceURI(a1).compareTo(namespaceURI(a2));
+         if (result == 0)
+            result = localName(a1).compareTo(localName(a2));
+
+         return result;
+      }
+
+      // The prefix that a namespace declaration declares, "" for the default namespace, otherwise null
+      private static String declaredPrefix(Attr attr)
+      {
+         String name = attr.getNodeName();
+         if (name.startsWith("xmlns"))
          {
-            Attr temp = array[i];
-            array[i] = array[index];
-            array[index] = temp;
+            if (name.length() == 5)
+               return "";
+            if (name.charAt(5) == ':')
+               return name.substring(6);
          }
+         return null;
+      }
+
+      private static String namespaceURI(Attr attr)
+      {
+         String nsURI = attr.getNamespaceURI();
+         return (nsURI != null ? nsURI : "");
+      }
+
+      private static String localName(Attr attr)
+      {
+         String localName = attr.getLocalName();
+         return (localName != null ? localName : attr.getNodeName());
       }
-      return (array);
    }
 
    /** Normalizes the given string. */
    public static String normalize(String s, boolean canonical)
    {
-      StringBuffer str = new StringBuffer();
+      int len = (s != null) ? s.length() : 0;
+      int index = indexOfEscape(s, 0, len, canonical);
+      if (index == len)
+         return (s != null ? s : "");
 
+      String[] escapes = (canonical ? CANONICAL_ESCAPES : ESCAPES);
+      StringBuilder str = new StringBuilder(len + 16);
+      int start = 0;
+      while (index < len)
+      {
+         str.append(s, start, index);
+         str.append(escapes[s.charAt(index)]);
+         start = index + 1;
+         index = indexOfEscape(s, start, len, canonical);
+      }
+      str.append(s, start, len);
+      return str.toString();
+   }
+
+   // Write the normalized string without creating it
+   private void writeNormalized(String s)
+   {
+      writeNormalized(out, s, canonical);
+   }
+
+   static void writeNormalized(XMLOutput out, String s, boolean canonical)
+   {
+      int len = (s != null) ? s.length() : 0;
+      String[] escapes = (canonical ? CANONICAL_ESCAPES : ESCAPES);
+      int start = 0;
+      int index = indexOfEscape(s, 0, len, canonical);
+      while (index < len)
+      {
+         if (index > start)
+            out.write(s, start, index - start);
+
+         out.write(escapes[s.charAt(index)]);
+         start = index + 1;
+         index = indexOfEscape(s, start, len, canonical);
+      }
+      if (len > start)
+         out.write(s, start, len - start);
+   }
+
+   // The index of the next char that is escaped, or end
+   private static int indexOfEscape(String s, int start, int end, boolean canonical)
+   {
+      byte[] table = (canonical ? CANONICAL_ESCAPE_TABLE : ESCAPE_TABLE);
+      for (int i = start; i < end; i++)
+      {
+         char ch = s.charAt(i);
+         if (ch < ESCAPE_TABLE_SIZE && table[ch] != 0)
+            return i;
+      }
+      return end;
+   }
+
+   // True, if the normalized string would be empty after trim()
+   static boolean isBlank(String s, boolean canonical)
+   {
       int len = (s != null) ? s.length() : 0;
       for (int i = 0; i < len; i++)
       {
          char ch = s.charAt(i);
-         switch (ch)
-         {
-            case '<':
-            {
-               str.append("&lt;");
-               break;
-            }
-            case '>':
-            {
-               str.append("&gt;");
-               break;
-            }
-            case '&':
-            {
-               str.append("&amp;");
-               break;
-            }
-            case '"':
-            {
-               str.append("&quot;");
-               break;
-            }
-            case '\'':
-            {
-               str.append("&apos;");
-               break;
-            }
-            case '\r':
-            {
-               str.append("&#xD;");
-               break;
-            }
-            case '\n':
-            {
-               if (canonical)
-               {
-                  str.append("&#");
-                  str.append(Integer.toString(ch));
-                  str.append(';');
-                  break;
-               }
-               // else, default append char
-            }
-            default:
-            {
-               str.append(ch);
-            }
-         }
+         if (ch > ' ' || (ch == '\r') || (ch == '\n' && canonical))
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Prints a node when toString() is called
+    */
+   private static class LazyPrint
+   {
+      private final Node node;
+      private final boolean prettyprint;
+      private final int maxLength;
+
+      LazyPrint(Node node, boolean prettyprint, int maxLength)
+      {
+         this.node = node;
+         this.prettyprint = prettyprint;
+         this.maxLength = maxLength;
+      }
+
+      public String toString()
+      {
+         return printNode(node, prettyprint, maxLength);
       }
-      return (str.toString());
    }
 }
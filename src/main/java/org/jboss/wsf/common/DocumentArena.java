@@ -0,0 +1,280 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.Closeable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.jboss.logging.Logger;
+import org.w3c.dom.Document;
+
+/**
+ * A scope for the owner document of the elements that are created through DOMUtils.
+ *
+ * Without an open arena, all elements that a thread creates belong to one document
+ * that lives as long as the thread. An arena that is opened with {@link DOMUtils#openDocumentArena()}
+ * provides a fresh owner document to the current thread until it is closed.
+ * Arenas can be nested, the innermost open arena is used.
+ *
+ * <pre>
+ * DocumentArena arena = DOMUtils.openDocumentArena();
+ * try
+ * {
+ *    ...
+ * }
+ * finally
+ * {
+ *    arena.close();
+ * }
+ * </pre>
+ *
+ * Arenas that become unreachable without being closed are reported as leaks.
+ * Set -Dorg.jboss.wsf.common.DocumentArena.trackAllocations=true to log where they were opened.
+ */
+public final class DocumentArena implements Closeable
+{
+   private static Logger log = Logger.getLogger(DocumentArena.class);
+
+   private static final boolean trackAllocations = Boolean.getBoolean("org.jboss.wsf.common.DocumentArena.trackAllocations");
+
+   // The open arenas of the current thread, innermost last
+   private static ThreadLocal<List<ArenaState>> arenaThreadLocal = new ThreadLocal<List<ArenaState>>();
+
+   // Notified when an arena becomes unreachable
+   private static final ReferenceQueue<DocumentArena> leakQueue = new ReferenceQueue<DocumentArena>();
+   // Keeps the references of the open arenas alive
+   private static final Map<ArenaReference, Boolean> openArenas = new ConcurrentHashMap<ArenaReference, Boolean>();
+
+   static final AtomicLong openedCount = new AtomicLong();
+   static final AtomicLong closedCount = new AtomicLong();
+   static final AtomicLong leakedCount = new AtomicLong();
+   // The nodes of the released arenas, an open arena counts its nodes itself
+   static final AtomicLong releasedNodeCount = new AtomicLong();
+
+   private final ArenaState state;
+   private final ArenaReference reference;
+
+   private DocumentArena(ArenaState state)
+   {
+      this.state = state;
+      this.reference = new ArenaReference(this, state);
+   }
+
+   /** Open an arena for the current thread
+    */
+   static DocumentArena open()
+   {
+      expungeLeaks();
+
+      DocumentBuilder builder = DOMUtils.borrowDocumentBuilder();
+      Document doc;
+      try
+      {
+         doc = builder.newDocument();
+      }
+      finally
+      {
+         DOMUtils.releaseDocumentBuilder(builder);
+      }
+
+      ArenaState state = new ArenaState(doc, trackAllocations ? new Exception("Arena allocation site") : null);
+      DocumentArena arena = new DocumentArena(state);
+      openArenas.put(arena.reference, Boolean.TRUE);
+
+      List<ArenaState> arenas = arenaThreadLocal.get();
+      if (arenas == null)
+      {
+         arenas = new ArrayList<ArenaState>(2);
+         arenaThreadLocal.set(arenas);
+      }
+      arenas.add(state);
+
+      openedCount.incrementAndGet();
+      return arena;
+   }
+
+   /** Get the state of the innermost open arena of the current thread, or null
+    */
+   static ArenaState current()
+   {
+      List<ArenaState> arenas = arenaThreadLocal.get();
+      if (arenas == null)
+         return null;
+
+      // Drop arenas that were released because they leaked
+      for (int i = arenas.size() - 1; i >= 0; i--)
+      {
+         ArenaState state = arenas.get(i);
+         if (state.document != null)
+            return state;
+
+         arenas.remove(i);
+      }
+      return null;
+   }
+
+   /** Forget the open arenas of the current thread, they are no longer used for new nodes
+    */
+   static void clearThreadLocal()
+   {
+      arenaThreadLocal.remove();
+   }
+
+   /** The number of nodes in the arenas that are currently open
+    */
+   static long getOpenNodeCount()
+   {
+      long count = 0;
+      for (ArenaReference ref : openArenas.keySet())
+         count += ref.state.nodeCount;
+      return count;
+   }
+
+   /** Get the statistics of all arenas
+    */
+   public static DocumentArenaStatisticsMBean getStatistics()
+   {
+      return DocumentArenaStatistics.INSTANCE;
+   }
+
+   /** The owner document of this arena
+    */
+   public Document getDocument()
+   {
+      Document doc = state.document;
+      if (doc == null)
+         throw new IllegalStateException("Arena already closed");
+
+      return doc;
+   }
+
+   /** The number of nodes that were created in this arena through DOMUtils
+    */
+   public long getNodeCount()
+   {
+      return state.nodeCount;
+   }
+
+   public boolean isClosed()
+   {
+      return state.document == null;
+   }
+
+   /** Close this arena and release its document.
+    *
+    * Must be called by the thread that opened the arena.
+    * Nodes that were created in this arena remain valid as long as they are referenced.
+    */
+   public void close()
+   {
+      if (state.document == null)
+         return;
+
+      openArenas.remove(reference);
+      reference.clear();
+
+      List<ArenaState> arenas = arenaThreadLocal.get();
+      if (arenas != null)
+      {
+         arenas.remove(state);
+         if (arenas.isEmpty())
+            arenaThreadLocal.remove();
+      }
+
+      state.release();
+      closedCount.incrementAndGet();
+   }
+
+   private static void expungeLeaks()
+   {
+      ArenaReference ref = (ArenaReference)leakQueue.poll();
+      while (ref != null)
+      {
+         if (openArenas.remove(ref) != null)
+         {
+            ArenaState state = ref.state;
+            leakedCount.incrementAndGet();
+            if (state.allocationSite != null)
+               log.warn("DocumentArena was not closed", state.allocationSite);
+            else
+               log.warn("DocumentArena was not closed, use -Dorg.jboss.wsf.common.DocumentArena.trackAllocations=true to find out where it was opened");
+
+            state.release();
+         }
+         ref = (ArenaReference)leakQueue.poll();
+      }
+   }
+
+   /**
+    * The state of an arena, which is referenced by the thread that opened it
+    */
+   static final class ArenaState
+   {
+      // The owner document, null when released
+      volatile Document document;
+      final Exception allocationSite;
+      // Only written by the owning thread, read by the statistics
+      volatile long nodeCount;
+
+      ArenaState(Document document, Exception allocationSite)
+      {
+         this.document = document;
+         this.allocationSite = allocationSite;
+      }
+
+      void nodeCreated()
+      {
+         nodeCount++;
+      }
+
+      void release()
+      {
+         if (document == null)
+            return;
+
+         // The document and its nodes can be collected once the caller drops them
+         document = null;
+         releasedNodeCount.addAndGet(nodeCount);
+      }
+   }
+
+   private static final class ArenaReference extends WeakReference<DocumentArena>
+   {
+      private final ArenaState state;
+
+      ArenaReference(DocumentArena arena, ArenaState state)
+      {
+         super(arena, leakQueue);
+         this.state = state;
+      }
+   }
+}
@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+
+/**
+ * The statistics of all {@link DocumentArena} instances in this VM
+ */
+public final class DocumentArenaStatistics implements DocumentArenaStatisticsMBean
+{
+   static final DocumentArenaStatistics INSTANCE = new DocumentArenaStatistics();
+
+   // Hide the constructor
+   private DocumentArenaStatistics()
+   {
+   }
+
+   /** Register the statistics with the given MBeanServer under {@link DocumentArenaStatisticsMBean#OBJECT_NAME}
+    */
+   public static void register(MBeanServer server) throws JMException
+   {
+      if (server.isRegistered(OBJECT_NAME) == false)
+         server.registerMBean(INSTANCE, OBJECT_NAME);
+   }
+
+   public long getOpenArenaCount()
+   {
+      return DocumentArena.openedCount.get() - DocumentArena.closedCount.get() - DocumentArena.leakedCount.get();
+   }
+
+   public long getOpenedArenaCount()
+   {
+      return DocumentArena.openedCount.get();
+   }
+
+   public long getClosedArenaCount()
+   {
+      return DocumentArena.closedCount.get();
+   }
+
+   public long getLeakedArenaCount()
+   {
+      return DocumentArena.leakedCount.get();
+   }
+
+   public long getCreatedNodeCount()
+   {
+      return DocumentArena.releasedNodeCount.get() + DocumentArena.getOpenNodeCount();
+   }
+
+   public long getOpenNodeCount()
+   {
+      return DocumentArena.getOpenNodeCount();
+   }
+}
@@ -0,0 +1,53 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import javax.management.ObjectName;
+
+/**
+ * Management view of the {@link DocumentArena} usage
+ */
+public interface DocumentArenaStatisticsMBean
+{
+   /** The object name in the MBean server */
+   ObjectName OBJECT_NAME = ObjectNameFactory.create("jboss.ws:service=DocumentArenaStatistics");
+
+   /** The number of arenas that are currently open */
+   long getOpenArenaCount();
+
+   /** The number of arenas that were opened */
+   long getOpenedArenaCount();
+
+   /** The number of arenas that were closed */
+   long getClosedArenaCount();
+
+   /** The number of arenas that became unreachable without being closed */
+   long getLeakedArenaCount();
+
+   /** The number of nodes that were created in arenas */
+   long getCreatedNodeCount();
+
+   /** The number of nodes that were created in arenas that are currently open */
+   long getOpenNodeCount();
+}
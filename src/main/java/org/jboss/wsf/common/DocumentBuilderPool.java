@@ -0,0 +1,320 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.validation.Schema;
+
+import org.jboss.logging.Logger;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * A bounded pool of preconfigured DocumentBuilder instances.
+ *
+ * Builders are created from a single factory that is configured like the
+ * one used by {@link DOMUtils}, i.e. namespace aware and with external
+ * entities disabled. A borrowed builder uses the entity resolver of the
+ * borrower's thread context class loader. A builder that is handed back to
+ * the pool is reset and becomes available to the next borrower.
+ *
+ * Every builder obtained from {@link #borrow()} must be handed back through
+ * {@link #release(DocumentBuilder)}, preferably in a finally block.
+ */
+public final class DocumentBuilderPool
+{
+   private static Logger log = Logger.getLogger(DocumentBuilderPool.class);
+
+   // The factory that creates the pooled builders, access must be synchronized
+   private final DocumentBuilderFactory factory;
+   // The idle builders
+   private final BlockingQueue<PooledDocumentBuilder> idle;
+   // Limits the number of borrowed builders, null if unbounded
+   private final Semaphore active;
+   // The max time to wait for a builder in ms
+   private final long maxWait;
+
+   // The number of currently borrowed builders
+   private final AtomicInteger activeCount = new AtomicInteger();
+   // Borrows that were served by an idle builder
+   private final AtomicLong hits = new AtomicLong();
+   // Borrows that had to create a new builder
+   private final AtomicLong misses = new AtomicLong();
+   // Borrows that had to wait for another thread to release a builder
+   private final AtomicLong waits = new AtomicLong();
+
+   /**
+    * Create a pool that retains up to <code>maxIdle</code> builders and
+    * does not limit the number of borrowed builders.
+    */
+   public DocumentBuilderPool(int maxIdle)
+   {
+      this(maxIdle, 0, 0);
+   }
+
+   /**
+    * Create a pool that retains up to <code>maxIdle</code> builders.
+    * If <code>maxActive</code> is greater than zero, at most that many builders
+    * can be borrowed at any time and a borrower waits up to <code>maxWait</code> ms
+    * for another thread to release one.
+    */
+   public DocumentBuilderPool(int maxIdle, int maxActive, long maxWait)
+   {
+      if (maxIdle < 1)
+         throw new IllegalArgumentException("Invalid maxIdle: " + maxIdle);
+
+      this.factory = DOMUtils.newDocumentBuilderFactory();
+      this.idle = new ArrayBlockingQueue<PooledDocumentBuilder>(maxIdle);
+      this.active = (maxActive > 0 ? new Semaphore(maxActive, true) : null);
+      this.maxWait = maxWait;
+   }
+
+   /**
+    * Borrow a builder from the pool
+    */
+   public DocumentBuilder borrow()
+   {
+      if (active != null)
+         acquirePermit();
+
+      PooledDocumentBuilder builder = idle.poll();
+      if (builder != null)
+      {
+         hits.incrementAndGet();
+      }
+      else
+      {
+         misses.incrementAndGet();
+         try
+         {
+            builder = new PooledDocumentBuilder(this, newDocumentBuilder());
+         }
+         catch (RuntimeException rte)
+         {
+            if (active != null)
+               active.release();
+            throw rte;
+         }
+      }
+
+      // The pool is shared, resolve entities for the class loader of this borrower
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      builder.setEntityResolver(EntityResolverCache.getEntityResolver(loader));
+      builder.leased.set(true);
+      activeCount.incrementAndGet();
+      return builder;
+   }
+
+   /**
+    * Return a builder to the pool.
+    * Builders that were not borrowed from this pool are ignored.
+    */
+   public void release(DocumentBuilder builder)
+   {
+      if (!(builder instanceof PooledDocumentBuilder))
+         return;
+
+      PooledDocumentBuilder pooled = (PooledDocumentBuilder)builder;
+      if (pooled.pool != this || pooled.leased.compareAndSet(true, false) == false)
+         return;
+
+      activeCount.decrementAndGet();
+      try
+      {
+         pooled.reset();
+         idle.offer(pooled);
+      }
+      catch (RuntimeException rte)
+      {
+         // The builder cannot be reused, let it go
+         log.debug("Cannot reset DocumentBuilder: " + rte);
+      }
+      finally
+      {
+         if (active != null)
+            active.release();
+      }
+   }
+
+   /** Discard all idle builders */
+   public void clear()
+   {
+      idle.clear();
+   }
+
+   /** The number of borrows that were served by an idle builder */
+   public long getHitCount()
+   {
+      return hits.get();
+   }
+
+   /** The number of borrows that had to create a new builder */
+   public long getMissCount()
+   {
+      return misses.get();
+   }
+
+   /** The number of borrows that had to wait for a builder to be released */
+   public long getWaitCount()
+   {
+      return waits.get();
+   }
+
+   /** The number of builders that are currently borrowed */
+   public int getActiveCount()
+   {
+      return activeCount.get();
+   }
+
+   /** The number of builders that are currently idle */
+   public int getIdleCount()
+   {
+      return idle.size();
+   }
+
+   public String toString()
+   {
+      return "DocumentBuilderPool[hits=" + hits + ",misses=" + misses + ",waits=" + waits + ",active=" + activeCount + ",idle=" + idle.size() + "]";
+   }
+
+   private void acquirePermit()
+   {
+      if (active.tryAcquire())
+         return;
+
+      waits.incrementAndGet();
+      boolean acquired = false;
+      try
+      {
+         acquired = active.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+      }
+
+      if (acquired == false)
+         throw new IllegalStateException("Cannot obtain DocumentBuilder within " + maxWait + "ms");
+   }
+
+   private DocumentBuilder newDocumentBuilder()
+   {
+      try
+      {
+         DocumentBuilder builder;
+         synchronized (factory)
+         {
+            builder = factory.newDocumentBuilder();
+         }
+         return builder;
+      }
+      catch (ParserConfigurationException e)
+      {
+         throw new RuntimeException("Failed to create DocumentBuilder", e);
+      }
+   }
+
+   /**
+    * A DocumentBuilder that remembers the pool it belongs to
+    */
+   private static final class PooledDocumentBuilder extends DocumentBuilder
+   {
+      private final DocumentBuilderPool pool;
+      private final DocumentBuilder delegate;
+      private final AtomicBoolean leased = new AtomicBoolean();
+
+      PooledDocumentBuilder(DocumentBuilderPool pool, DocumentBuilder delegate)
+      {
+         this.pool = pool;
+         this.delegate = delegate;
+      }
+
+      public Document parse(InputSource is) throws SAXException, IOException
+      {
+         return delegate.parse(is);
+      }
+
+      public boolean isNamespaceAware()
+      {
+         return delegate.isNamespaceAware();
+      }
+
+      public boolean isValidating()
+      {
+         return delegate.isValidating();
+      }
+
+      public boolean isXIncludeAware()
+      {
+         return delegate.isXIncludeAware();
+      }
+
+      public Schema getSchema()
+      {
+         return delegate.getSchema();
+      }
+
+      public void setEntityResolver(EntityResolver er)
+      {
+         delegate.setEntityResolver(er);
+      }
+
+      public void setErrorHandler(ErrorHandler eh)
+      {
+         delegate.setErrorHandler(eh);
+      }
+
+      public Document newDocument()
+      {
+         return delegate.newDocument();
+      }
+
+      public DOMImplementation getDOMImplementation()
+      {
+         return delegate.getDOMImplementation();
+      }
+
+      public void reset()
+      {
+         // Do not keep the resolver of the last borrower, the next one sets its own
+         delegate.reset();
+         delegate.setEntityResolver(null);
+      }
+   }
+}
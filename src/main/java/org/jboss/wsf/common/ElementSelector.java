@@ -0,0 +1,220 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A precompiled path of element names that selects descendants of a context node.
+ *
+ * Each step selects child elements of the elements selected by the previous step.
+ * The first step applies to the children of the context node, e.g. the path
+ * <code>Header/Security/UsernameToken</code> evaluated on a SOAP envelope element.
+ *
+ * A step is either a local name, a local name in Clark notation <code>{uri}local</code>
+ * or a prefixed name <code>wsse:Security</code> when a prefix map is given.
+ * A local name without namespace matches on the local name only, like the
+ * other element lookups in {@link DOMUtils}. A local name of "*" matches any element.
+ *
+ * Selectors are immutable and can be shared between threads.
+ */
+public final class ElementSelector
+{
+   // The namespace URI per step, empty for any namespace
+   private final String[] nsURIs;
+   // The local name per step, null for any element
+   private final String[] localParts;
+   private final String expression;
+
+   private ElementSelector(String[] nsURIs, String[] localParts, String expression)
+   {
+      this.nsURIs = nsURIs;
+      this.localParts = localParts;
+      this.expression = expression;
+   }
+
+   /** Compile a path of element names
+    */
+   public static ElementSelector compile(QName... path)
+   {
+      if (path == null || path.length == 0)
+         throw new IllegalArgumentException("Empty path");
+
+      String[] nsURIs = new String[path.length];
+      String[] localParts = new String[path.length];
+      StringBuilder expr = new StringBuilder();
+      for (int i = 0; i < path.length; i++)
+      {
+         nsURIs[i] = path[i].getNamespaceURI();
+         localParts[i] = localPartOrWildcard(path[i].getLocalPart());
+         if (i > 0)
+            expr.append('/');
+         expr.append(path[i]);
+      }
+      return new ElementSelector(nsURIs, localParts, expr.toString());
+   }
+
+   /** Compile a path expression without prefixed names
+    */
+   public static ElementSelector compile(String expression)
+   {
+      return compile(expression, null);
+   }
+
+   /** Compile a path expression, prefixed names are resolved with the given prefix to namespace URI map
+    */
+   public static ElementSelector compile(String expression, Map<String, String> namespaces)
+   {
+      if (expression == null || expression.length() == 0)
+         throw new IllegalArgumentException("Empty path");
+
+      List<String> steps = splitSteps(expression);
+      String[] nsURIs = new String[steps.size()];
+      String[] localParts = new String[steps.size()];
+      for (int i = 0; i < steps.size(); i++)
+      {
+         String step = steps.get(i);
+         String nsURI = "";
+         String localPart = step;
+         if (step.startsWith("{"))
+         {
+            int index = step.indexOf('}');
+            nsURI = step.substring(1, index);
+            localPart = step.substring(index + 1);
+         }
+         else if (step.indexOf(':') > 0)
+         {
+            int index = step.indexOf(':');
+            String prefix = step.substring(0, index);
+            nsURI = (namespaces != null ? namespaces.get(prefix) : null);
+            if (nsURI == null)
+               throw new IllegalArgumentException("Cannot find namespace uri for: " + step);
+
+            localPart = step.substring(index + 1);
+         }
+
+         if (localPart.length() == 0)
+            throw new IllegalArgumentException("Invalid step '" + step + "' in: " + expression);
+
+         nsURIs[i] = nsURI;
+         localParts[i] = localPartOrWildcard(localPart);
+      }
+      return new ElementSelector(nsURIs, localParts, expression);
+   }
+
+   /** Get the first selected element in document order, or null
+    */
+   public Element selectFirst(Node context)
+   {
+      return selectFirst(context, 0);
+   }
+
+   /** Get all selected elements in document order
+    */
+   public List<Element> selectAll(Node context)
+   {
+      List<Element> result = new ArrayList<Element>();
+      selectAll(context, 0, result);
+      return result;
+   }
+
+   public String toString()
+   {
+      return expression;
+   }
+
+   private Element selectFirst(Node node, int step)
+   {
+      String nsURI = nsURIs[step];
+      String localPart = localParts[step];
+      boolean last = (step == localParts.length - 1);
+
+      Element child = ChildElementIterator.findNext(node.getFirstChild(), nsURI, localPart);
+      while (child != null)
+      {
+         Element match = (last ? child : selectFirst(child, step + 1));
+         if (match != null)
+            return match;
+
+         child = ChildElementIterator.findNext(child.getNextSibling(), nsURI, localPart);
+      }
+      return null;
+   }
+
+   private void selectAll(Node node, int step, List<Element> result)
+   {
+      String nsURI = nsURIs[step];
+      String localPart = localParts[step];
+      boolean last = (step == localParts.length - 1);
+
+      Element child = ChildElementIterator.findNext(node.getFirstChild(), nsURI, localPart);
+      while (child != null)
+      {
+         if (last)
+            result.add(child);
+         else
+            selectAll(child, step + 1, result);
+
+         child = ChildElementIterator.findNext(child.getNextSibling(), nsURI, localPart);
+      }
+   }
+
+   private static String localPartOrWildcard(String localPart)
+   {
+      return (StAXDOMBuilder.WILDCARD.equals(localPart) ? null : localPart);
+   }
+
+   // Split at '/' outside of braces, namespace URIs usually contain slashes
+   private static List<String> splitSteps(String expression)
+   {
+      List<String> steps = new ArrayList<String>();
+      int start = 0;
+      boolean inBraces = false;
+      for (int i = 0; i < expression.length(); i++)
+      {
+         char ch = expression.charAt(i);
+         if (ch == '{')
+            inBraces = true;
+         else if (ch == '}')
+            inBraces = false;
+         else if (ch == '/' && inBraces == false)
+         {
+            steps.add(expression.substring(start, i).trim());
+            start = i + 1;
+         }
+      }
+      if (inBraces)
+         throw new IllegalArgumentException("Unbalanced braces in: " + expression);
+
+      steps.add(expression.substring(start).trim());
+      return steps;
+   }
+}
@@ -0,0 +1,265 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.logging.Logger;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Caches the EntityResolver that is used by DOMUtils per class loader.
+ *
+ * The resolver classes are loaded once per class loader and the resolver instance is
+ * shared by all builders that are created for that loader. Class loaders are weakly
+ * referenced, so that undeployed applications can be garbage collected.
+ *
+ * If enabled, the content of resolved entities (i.e. DTDs and schemas) is cached as well.
+ */
+public final class EntityResolverCache
+{
+   private static Logger log = Logger.getLogger(EntityResolverCache.class);
+
+   private static final String[] RESOLVERS = new String[] { "org.jboss.ws.core.utils.JBossWSEntityResolver", "org.jboss.util.xml.JBossEntityResolver" };
+
+   // The max size of a single cached entity
+   private static final int MAX_ENTITY_SIZE = 256 * 1024;
+   // The max number of cached entities
+   private static final int MAX_ENTITY_COUNT = 256;
+
+   // Marks a class loader that cannot load any of the resolvers
+   private static final EntityResolver NO_RESOLVER = new EntityResolver()
+   {
+      public InputSource resolveEntity(String publicId, String systemId)
+      {
+         return null;
+      }
+   };
+
+   // The resolvers per class loader, the holders do not reference the loader
+   private static final Map<ClassLoader, ResolverHolder> resolvers = new WeakHashMap<ClassLoader, ResolverHolder>();
+
+   // True if the content of resolved entities should be cached
+   private static boolean cacheEntities = Boolean.getBoolean("org.jboss.wsf.common.EntityResolverCache.cacheEntities");
+
+   // Hide the constructor
+   private EntityResolverCache()
+   {
+   }
+
+   /** Get the entity resolver for the given class loader, or null if there is none
+    */
+   public static EntityResolver getEntityResolver(ClassLoader loader)
+   {
+      if (loader == null)
+         loader = EntityResolverCache.class.getClassLoader();
+
+      EntityResolver entityResolver = null;
+      synchronized (resolvers)
+      {
+         ResolverHolder holder = resolvers.get(loader);
+         entityResolver = (holder != null ? holder.get() : null);
+      }
+
+      if (entityResolver == null)
+      {
+         // Concurrent lookups for the same loader are harmless, the last one wins
+         entityResolver = loadEntityResolver(loader);
+         synchronized (resolvers)
+         {
+            resolvers.put(loader, new ResolverHolder(entityResolver, loader));
+         }
+      }
+
+      return (entityResolver != NO_RESOLVER ? entityResolver : null);
+   }
+
+   /** True if the content of resolved entities is cached
+    */
+   public static boolean isCacheEntities()
+   {
+      return cacheEntities;
+   }
+
+   /** Set whether the content of resolved entities should be cached.
+    * This applies to resolvers that are loaded after this call.
+    */
+   public static void setCacheEntities(boolean flag)
+   {
+      cacheEntities = flag;
+      clear();
+   }
+
+   /** Clear all cached resolvers
+    */
+   public static void clear()
+   {
+      synchronized (resolvers)
+      {
+         resolvers.clear();
+      }
+   }
+
+   private static EntityResolver loadEntityResolver(ClassLoader loader)
+   {
+      EntityResolver entityResolver = null;
+      for (String resolver : RESOLVERS)
+      {
+         try
+         {
+            Class<?> resolverClass = loader.loadClass(resolver);
+            entityResolver = (EntityResolver)resolverClass.newInstance();
+         }
+         catch (Exception ex)
+         {
+            log.debug("Cannot load: " + resolver);
+         }
+      }
+
+      if (entityResolver == null)
+         return NO_RESOLVER;
+
+      return (cacheEntities ? new CachingEntityResolver(entityResolver) : entityResolver);
+   }
+
+   /**
+    * The cached resolver of a class loader.
+    *
+    * The resolver is held strongly, unless its class was loaded by the class loader itself or one of its
+    * children. Such a resolver would keep its key in the WeakHashMap alive, it is held weakly instead and
+    * stays cached as long as the builders it has been set on are alive.
+    */
+   private static final class ResolverHolder
+   {
+      private final EntityResolver resolver;
+      private final WeakReference<EntityResolver> weakResolver;
+
+      ResolverHolder(EntityResolver entityResolver, ClassLoader loader)
+      {
+         if (isLoadedBy(entityResolver, loader))
+         {
+            resolver = null;
+            weakResolver = new WeakReference<EntityResolver>(entityResolver);
+         }
+         else
+         {
+            resolver = entityResolver;
+            weakResolver = null;
+         }
+      }
+
+      EntityResolver get()
+      {
+         return (resolver != null ? resolver : weakResolver.get());
+      }
+
+      // True, if the given loader is the defining loader of the resolver or one of its parents
+      private static boolean isLoadedBy(EntityResolver entityResolver, ClassLoader loader)
+      {
+         Object target = entityResolver;
+         if (target instanceof CachingEntityResolver)
+            target = ((CachingEntityResolver)target).delegate;
+
+         for (ClassLoader cl = target.getClass().getClassLoader(); cl != null; cl = cl.getParent())
+         {
+            if (cl == loader)
+               return true;
+         }
+         return false;
+      }
+   }
+
+   /**
+    * An EntityResolver that keeps the content of resolved entities in memory
+    */
+   private static class CachingEntityResolver implements EntityResolver
+   {
+      private final EntityResolver delegate;
+      private final Map<String, byte[]> entities = new ConcurrentHashMap<String, byte[]>();
+
+      CachingEntityResolver(EntityResolver delegate)
+      {
+         this.delegate = delegate;
+      }
+
+      public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException
+      {
+         String key = publicId + "|" + systemId;
+         byte[] bytes = entities.get(key);
+         if (bytes == null)
+         {
+            InputSource source = delegate.resolveEntity(publicId, systemId);
+
+            // Only byte streams are cached, everything else is passed on
+            InputStream ins = (source != null ? source.getByteStream() : null);
+            if (ins == null)
+               return source;
+
+            bytes = readEntity(ins);
+            if (bytes.length > MAX_ENTITY_SIZE || entities.size() >= MAX_ENTITY_COUNT)
+            {
+               log.debug("Cannot cache entity: " + systemId);
+               source.setByteStream(new ByteArrayInputStream(bytes));
+               return source;
+            }
+
+            entities.put(key, bytes);
+         }
+
+         InputSource source = new InputSource(new ByteArrayInputStream(bytes));
+         source.setPublicId(publicId);
+         source.setSystemId(systemId);
+         return source;
+      }
+
+      private byte[] readEntity(InputStream ins) throws IOException
+      {
+         try
+         {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+            byte[] bytes = new byte[4096];
+            int r = ins.read(bytes);
+            while (r > 0)
+            {
+               baos.write(bytes, 0, r);
+               r = ins.read(bytes);
+            }
+            return baos.toByteArray();
+         }
+         finally
+         {
+            ins.close();
+         }
+      }
+   }
+}
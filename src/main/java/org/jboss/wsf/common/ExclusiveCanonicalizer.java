@@ -0,0 +1,518 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes the Exclusive XML Canonicalization 1.0 form of a document or an element subtree.
+ *
+ * Namespace declarations are only written where a prefix is visibly utilized, or listed
+ * in the InclusiveNamespaces prefix list, and not already declared with the same URI by
+ * an output ancestor. The traversal does not recurse, and the scratch state is reused
+ * from one call to the next, so a canonicalizer should not be shared between threads.
+ *
+ * See http://www.w3.org/TR/xml-exc-c14n/
+ */
+final class ExclusiveCanonicalizer
+{
+   // The chars below this value are looked up in the escape tables
+   private static final int ESCAPE_TABLE_SIZE = 64;
+   private static final String[] TEXT_ESCAPES = new String[ESCAPE_TABLE_SIZE];
+   private static final String[] ATTRIBUTE_ESCAPES = new String[ESCAPE_TABLE_SIZE];
+   static
+   {
+      TEXT_ESCAPES['&'] = "&amp;";
+      TEXT_ESCAPES['<'] = "&lt;";
+      TEXT_ESCAPES['>'] = "&gt;";
+      TEXT_ESCAPES['\r'] = "&#xD;";
+
+      ATTRIBUTE_ESCAPES['&'] = "&amp;";
+      ATTRIBUTE_ESCAPES['<'] = "&lt;";
+      ATTRIBUTE_ESCAPES['"'] = "&quot;";
+      ATTRIBUTE_ESCAPES['\t'] = "&#x9;";
+      ATTRIBUTE_ESCAPES['\n'] = "&#xA;";
+      ATTRIBUTE_ESCAPES['\r'] = "&#xD;";
+   }
+
+   private XMLOutput out;
+   private final boolean withComments;
+   // The InclusiveNamespaces prefixes, "" for #default
+   private final String[] inclusivePrefixes;
+
+   // The namespace declarations in scope, innermost last, only maintained for inclusive prefixes
+   private String[] declaredPrefixes = new String[16];
+   private String[] declaredURIs = new String[16];
+   private int declaredCount;
+   // The namespace declarations written by the open elements, innermost last
+   private String[] renderedPrefixes = new String[16];
+   private String[] renderedURIs = new String[16];
+   private int renderedCount;
+   // The open nodes with the declared and rendered scope that they started
+   private Node[] openNodes = new Node[32];
+   private int[] openDeclaredScopes = new int[32];
+   private int[] openRenderedScopes = new int[32];
+   private int openCount;
+   // The namespace declarations and attributes of the current element
+   private String[] nsPrefixes = new String[8];
+   private String[] nsURIs = new String[8];
+   private int nsCount;
+   private Attr[] attrs = new Attr[16];
+
+   ExclusiveCanonicalizer(boolean withComments, String inclusivePrefixList)
+   {
+      this.withComments = withComments;
+      this.inclusivePrefixes = parsePrefixList(inclusivePrefixList);
+   }
+
+   /** Parse a whitespace separated InclusiveNamespaces PrefixList */
+   static String[] parsePrefixList(String prefixList)
+   {
+      List<String> prefixes = new ArrayList<String>();
+      if (prefixList != null)
+      {
+         for (String prefix : prefixList.trim().split("\\s+"))
+         {
+            if (prefix.length() > 0)
+               prefixes.add("#default".equals(prefix) ? "" : prefix);
+         }
+      }
+      return prefixes.toArray(new String[prefixes.size()]);
+   }
+
+   /** Write the canonical form of the given node to the given output */
+   void canonicalize(Node node, XMLOutput out)
+   {
+      this.out = out;
+      declaredCount = 0;
+      renderedCount = 0;
+      openCount = 0;
+      try
+      {
+         if (node.getNodeType() == Node.DOCUMENT_NODE)
+         {
+            canonicalizeDocument(node);
+         }
+         else
+         {
+            if (inclusivePrefixes.length > 0)
+               declareOuterNamespaces(node.getParentNode());
+
+            canonicalizeSubtree(node);
+         }
+      }
+      finally
+      {
+         // Do not keep the nodes of the last element
+         for (int i = 0; i < attrs.length; i++)
+            attrs[i] = null;
+         for (int i = 0; i < openCount; i++)
+            openNodes[i] = null;
+
+         this.out = null;
+      }
+   }
+
+   private void canonicalizeDocument(Node doc)
+   {
+      boolean afterDocumentElement = false;
+      for (Node child = doc.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         int type = child.getNodeType();
+         if (type == Node.ELEMENT_NODE)
+         {
+            canonicalizeSubtree(child);
+            afterDocumentElement = true;
+         }
+         else if (type == Node.PROCESSING_INSTRUCTION_NODE || (type == Node.COMMENT_NODE && withComments))
+         {
+            // Nodes outside the document element are separated by line feeds
+            if (afterDocumentElement)
+               out.write('\n');
+
+            canonicalizeSubtree(child);
+
+            if (afterDocumentElement == false)
+               out.write('\n');
+         }
+      }
+   }
+
+   private void canonicalizeSubtree(Node root)
+   {
+      Node node = root;
+      while (true)
+      {
+         if (writeStart(node))
+         {
+            Node child = node.getFirstChild();
+            if (child != null)
+            {
+               node = child;
+               continue;
+            }
+            writeEnd();
+         }
+
+         // Continue with the next sibling and close the nodes that have no more children
+         while (true)
+         {
+            if (node == root)
+               return;
+
+            Node next = node.getNextSibling();
+            if (next != null)
+            {
+               node = next;
+               break;
+            }
+
+            node = openNodes[openCount - 1];
+            writeEnd();
+         }
+      }
+   }
+
+   // Returns true if the node was opened and its children are written next
+   private boolean writeStart(Node node)
+   {
+      switch (node.getNodeType())
+      {
+         case Node.ELEMENT_NODE:
+         {
+            openNode(node);
+            writeStartTag((Element)node);
+            return true;
+         }
+
+         case Node.ENTITY_REFERENCE_NODE:
+         {
+            openNode(node);
+            return true;
+         }
+
+         case Node.TEXT_NODE:
+         case Node.CDATA_SECTION_NODE:
+         {
+            writeEscaped(node.getNodeValue(), TEXT_ESCAPES);
+            break;
+         }
+
+         case Node.PROCESSING_INSTRUCTION_NODE:
+         {
+            out.write("<?");
+            out.write(node.getNodeName());
+            String data = node.getNodeValue();
+            if (data != null && data.length() > 0)
+            {
+               out.write(' ');
+               out.write(data);
+            }
+            out.write("?>");
+            break;
+         }
+
+         case Node.COMMENT_NODE:
+         {
+            if (withComments)
+            {
+               out.write("<!--");
+               String data = node.getNodeValue();
+               if (data != null)
+                  out.write(data);
+               out.write("-->");
+            }
+            break;
+         }
+      }
+      return false;
+   }
+
+   private void writeEnd()
+   {
+      int index = --openCount;
+      Node node = openNodes[index];
+      openNodes[index] = null;
+      if (node.getNodeType() == Node.ELEMENT_NODE)
+      {
+         out.write("</");
+         out.write(node.getNodeName());
+         out.write('>');
+      }
+
+      declaredCount = openDeclaredScopes[index];
+      renderedCount = openRenderedScopes[index];
+   }
+
+   private void writeStartTag(Element element)
+   {
+      NamedNodeMap attributes = element.getAttributes();
+      int len = (attributes != null) ? attributes.getLength() : 0;
+      if (len > attrs.length)
+         attrs = new Attr[Math.max(len, attrs.length * 2)];
+
+      // The element visibly utilizes its own prefix, or the default namespace
+      nsCount = 0;
+      String elPrefix = element.getPrefix();
+      utilizeNamespace(elPrefix != null ? elPrefix : "", element.getNamespaceURI());
+
+      int attrCount = 0;
+      for (int i = 0; i < len; i++)
+      {
+         Attr attr = (Attr)attributes.item(i);
+         String name = attr.getNodeName();
+         if (name.startsWith("xmlns") && (name.length() == 5 || name.charAt(5) == ':'))
+         {
+            if (inclusivePrefixes.length > 0)
+               declareNamespace(name.length() == 5 ? "" : name.substring(6), attr.getNodeValue());
+            continue;
+         }
+
+         String atPrefix = attr.getPrefix();
+         if (atPrefix != null)
+            utilizeNamespace(atPrefix, attr.getNamespaceURI());
+
+         attrs[attrCount++] = attr;
+      }
+
+      for (int i = 0; i < inclusivePrefixes.length; i++)
+      {
+         String nsURI = lookupDeclared(inclusivePrefixes[i]);
+         if (nsURI != null)
+            utilizeNamespace(inclusivePrefixes[i], nsURI);
+      }
+
+      sortNamespaces();
+      sortAttributes(attrCount);
+
+      out.write('<');
+      out.write(element.getNodeName());
+      for (int i = 0; i < nsCount; i++)
+      {
+         String prefix = nsPrefixes[i];
+         if (prefix.length() == 0)
+         {
+            out.write(" xmlns=\"");
+         }
+         else
+         {
+            out.write(" xmlns:");
+            out.write(prefix);
+            out.write("=\"");
+         }
+         writeEscaped(nsURIs[i], ATTRIBUTE_ESCAPES);
+         out.write('"');
+
+         renderNamespace(prefix, nsURIs[i]);
+      }
+
+      for (int i = 0; i < attrCount; i++)
+      {
+         out.write(' ');
+         out.write(attrs[i].getNodeName());
+         out.write("=\"");
+         writeEscaped(attrs[i].getNodeValue(), ATTRIBUTE_ESCAPES);
+         out.write('"');
+      }
+      out.write('>');
+   }
+
+   // Add a namespace declaration to the current element, unless an output ancestor declares the same
+   private void utilizeNamespace(String prefix, String nsURI)
+   {
+      if (nsURI == null)
+      {
+         // Only the default namespace can be undeclared
+         if (prefix.length() > 0)
+            return;
+
+         nsURI = "";
+      }
+
+      if ("xml".equals(prefix) || nsURI.equals(lookupRendered(prefix)))
+         return;
+
+      for (int i = 0; i < nsCount; i++)
+      {
+         if (prefix.equals(nsPrefixes[i]))
+            return;
+      }
+
+      if (nsCount == nsPrefixes.length)
+      {
+         nsPrefixes = DOMWriter.grow(nsPrefixes);
+         nsURIs = DOMWriter.grow(nsURIs);
+      }
+      nsPrefixes[nsCount] = prefix;
+      nsURIs[nsCount] = nsURI;
+      nsCount++;
+   }
+
+   // The namespace URI that the output ancestors declare for a prefix, the default namespace is initially empty
+   private String lookupRendered(String prefix)
+   {
+      for (int i = renderedCount - 1; i >= 0; i--)
+      {
+         if (prefix.equals(renderedPrefixes[i]))
+            return renderedURIs[i];
+      }
+      return (prefix.length() == 0 ? "" : null);
+   }
+
+   private String lookupDeclared(String prefix)
+   {
+      for (int i = declaredCount - 1; i >= 0; i--)
+      {
+         if (prefix.equals(declaredPrefixes[i]))
+            return declaredURIs[i];
+      }
+      return null;
+   }
+
+   private void renderNamespace(String prefix, String nsURI)
+   {
+      if (renderedCount == renderedPrefixes.length)
+      {
+         renderedPrefixes = DOMWriter.grow(renderedPrefixes);
+         renderedURIs = DOMWriter.grow(renderedURIs);
+      }
+      renderedPrefixes[renderedCount] = prefix;
+      renderedURIs[renderedCount] = nsURI;
+      renderedCount++;
+   }
+
+   private void declareNamespace(String prefix, String nsURI)
+   {
+      if (declaredCount == declaredPrefixes.length)
+      {
+         declaredPrefixes = DOMWriter.grow(declaredPrefixes);
+         declaredURIs = DOMWriter.grow(declaredURIs);
+      }
+      declaredPrefixes[declaredCount] = prefix;
+      declaredURIs[declaredCount] = nsURI;
+      declaredCount++;
+   }
+
+   // Declare the namespaces of the ancestors of a subtree, outermost first
+   private void declareOuterNamespaces(Node parent)
+   {
+      List<Element> ancestors = new ArrayList<Element>();
+      for (Node node = parent; node instanceof Element; node = node.getParentNode())
+         ancestors.add((Element)node);
+
+      for (int i = ancestors.size() - 1; i >= 0; i--)
+      {
+         NamedNodeMap attributes = ancestors.get(i).getAttributes();
+         for (int j = 0; j < attributes.getLength(); j++)
+         {
+            String name = attributes.item(j).getNodeName();
+            if (name.equals("xmlns"))
+               declareNamespace("", attributes.item(j).getNodeValue());
+            else if (name.startsWith("xmlns:"))
+               declareNamespace(name.substring(6), attributes.item(j).getNodeValue());
+         }
+      }
+   }
+
+   // Namespace declarations are sorted by prefix, the default namespace first
+   private void sortNamespaces()
+   {
+      for (int i = 1; i < nsCount; i++)
+      {
+         String prefix = nsPrefixes[i];
+         String nsURI = nsURIs[i];
+         int j = i;
+         while (j > 0 && nsPrefixes[j - 1].compareTo(prefix) > 0)
+         {
+            nsPrefixes[j] = nsPrefixes[j - 1];
+            nsURIs[j] = nsURIs[j - 1];
+            j--;
+         }
+         nsPrefixes[j] = prefix;
+         nsURIs[j] = nsURI;
+      }
+   }
+
+   // Attributes are sorted by namespace URI and then local name
+   private void sortAttributes(int attrCount)
+   {
+      for (int i = 1; i < attrCount; i++)
+      {
+         Attr attr = attrs[i];
+         int j = i;
+         while (j > 0 && DOMWriter.CANONICAL_ORDER.compare(attrs[j - 1], attr) > 0)
+         {
+            attrs[j] = attrs[j - 1];
+            j--;
+         }
+         attrs[j] = attr;
+      }
+   }
+
+   private void writeEscaped(String s, String[] escapes)
+   {
+      int len = (s != null) ? s.length() : 0;
+      int start = 0;
+      for (int i = 0; i < len; i++)
+      {
+         char ch = s.charAt(i);
+         if (ch < ESCAPE_TABLE_SIZE && escapes[ch] != null)
+         {
+            if (i > start)
+               out.write(s, start, i - start);
+
+            out.write(escapes[ch]);
+            start = i + 1;
+         }
+      }
+      if (len > start)
+         out.write(s, start, len - start);
+   }
+
+   private void openNode(Node node)
+   {
+      if (openCount == openNodes.length)
+      {
+         Node[] nodes = new Node[openCount * 2];
+         System.arraycopy(openNodes, 0, nodes, 0, openCount);
+         openNodes = nodes;
+         int[] scopes = new int[openCount * 2];
+         System.arraycopy(openDeclaredScopes, 0, scopes, 0, openCount);
+         openDeclaredScopes = scopes;
+         scopes = new int[openCount * 2];
+         System.arraycopy(openRenderedScopes, 0, scopes, 0, openCount);
+         openRenderedScopes = scopes;
+      }
+      openNodes[openCount] = node;
+      openDeclaredScopes[openCount] = declaredCount;
+      openRenderedScopes[openCount] = renderedCount;
+      openCount++;
+   }
+}
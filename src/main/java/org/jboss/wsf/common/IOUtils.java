@@ -23,24 +23,29 @@ package org.jboss.wsf.common;
 
 // $Id$
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.activation.URLDataSource;
 import javax.xml.ws.WebServiceException;
 
-import org.jboss.wsf.spi.management.ServerConfig;
-import org.jboss.wsf.spi.management.ServerConfigFactory;
-import org.jboss.wsf.spi.SPIProvider;
-import org.jboss.wsf.spi.SPIProviderResolver;
 
 /**
  * IO utilites
@@ -59,27 +64,127 @@ public final class IOUtils
       return new OutputStreamWriter(new FileOutputStream(file), charset);
    }
 
-   /** Copy the input stream to the output stream
+   /** Copy the input stream to the output stream and close the input stream
     */
    public static void copyStream(OutputStream outs, InputStream ins) throws IOException
    {
       try
       {
-         byte[] bytes = new byte[1024];
+         copy(ins, outs);
+      }
+      finally
+      {
+         ins.close();
+      }
+   }
+
+   /**
+    * Copy the input stream to the output stream and return the number of bytes copied.
+    * Neither stream is closed.
+    *
+    * A file is copied to another file through their channels, other streams are copied
+    * through a pooled buffer, see -Dorg.jboss.wsf.common.IOUtils.bufferSize.
+    */
+   public static long copy(InputStream ins, OutputStream outs) throws IOException
+   {
+      if (ins instanceof FileInputStream && outs instanceof FileOutputStream)
+         return copy(((FileInputStream)ins).getChannel(), ((FileOutputStream)outs).getChannel());
+
+      byte[] bytes = BufferPool.acquireArray();
+      try
+      {
+         long count = 0;
          int r = ins.read(bytes);
          while (r > 0)
          {
             outs.write(bytes, 0, r);
+            count += r;
             r = ins.read(bytes);
          }
+         return count;
       }
-      catch (IOException e)
+      finally
       {
-         throw e;
+         BufferPool.release(bytes);
       }
-      finally{
-         ins.close();
+   }
+
+   /**
+    * Copy the input channel to the output channel and return the number of bytes copied.
+    * Neither channel is closed, both must be blocking.
+    *
+    * A FileChannel is copied with transferTo() or transferFrom(), which lets the
+    * operating system move the bytes. Other channels are copied through a pooled direct buffer.
+    */
+   public static long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException
+   {
+      if (in instanceof FileChannel)
+      {
+         // Pipes and special files report no size, they are copied through the buffer
+         if (((FileChannel)in).size() > 0)
+            return transferTo((FileChannel)in, out);
+      }
+      else if (out instanceof FileChannel)
+      {
+         FileChannel fileChannel = (FileChannel)out;
+         // transferFrom() does not write beyond the end of the file
+         if (fileChannel.position() <= fileChannel.size())
+            return transferFrom(in, fileChannel);
       }
+
+      ByteBuffer buffer = BufferPool.acquireDirectBuffer();
+      try
+      {
+         long count = 0;
+         while (in.read(buffer) >= 0)
+         {
+            buffer.flip();
+            count += out.write(buffer);
+            buffer.compact();
+         }
+
+         buffer.flip();
+         while (buffer.hasRemaining())
+            count += out.write(buffer);
+
+         return count;
+      }
+      finally
+      {
+         BufferPool.release(buffer);
+      }
+   }
+
+   // Copy from the position of the input to its end, the positions are advanced by the copied bytes
+   private static long transferTo(FileChannel in, WritableByteChannel out) throws IOException
+   {
+      long position = in.position();
+      long size = in.size();
+      long count = 0;
+      while (position + count < size)
+      {
+         long n = in.transferTo(position + count, size - position - count, out);
+         if (n <= 0)
+            break;
+
+         count += n;
+      }
+      in.position(position + count);
+      return count;
+   }
+
+   private static long transferFrom(ReadableByteChannel in, FileChannel out) throws IOException
+   {
+      long position = out.position();
+      long count = 0;
+      long n = out.transferFrom(in, position, BufferPool.BUFFER_SIZE);
+      while (n > 0)
+      {
+         count += n;
+         n = out.transferFrom(in, position + count, BufferPool.BUFFER_SIZE);
+      }
+      out.position(position + count);
+      return count;
    }
 
    /** Copy the reader to the output stream
@@ -107,12 +212,21 @@ public final class IOUtils
    }
 
    public static byte[] convertToBytes(DataHandler dh)
+   {
+      return convertToBytes(dh, getContentLength(dh));
+   }
+
+   /**
+    * Convert the DataHandler to a byte[] of the expected size.
+    * If the size is right, the content is written into a single array that is returned without a copy.
+    */
+   public static byte[] convertToBytes(DataHandler dh, int sizeHint)
    {
       try
       {
-         ByteArrayOutputStream buffOS = new ByteArrayOutputStream();
+         SizedOutputStream buffOS = new SizedOutputStream(sizeHint > 0 ? sizeHint : 1024);
          dh.writeTo(buffOS);
-         return buffOS.toByteArray();
+         return buffOS.getBytes();
       }
       catch (IOException e)
       {
@@ -121,52 +235,153 @@ public final class IOUtils
    }
 
    /**
-    * Transform a Reader to an InputStream
-    * Background is that DocumentBuilder.parse() cannot take the Reader directly
+    * Convert the DataHandler to a ByteBuffer.
+    * The content of a file is mapped into memory and does not use heap space.
     */
-   public static InputStream transformReader(Reader reader) throws IOException
+   public static ByteBuffer convertToByteBuffer(DataHandler dh)
    {
-      try
+      DataSource ds = dh.getDataSource();
+      if (ds instanceof FileDataSource)
       {
-         int capacity = 1024;
-         char[] charBuffer = new char[capacity];
-         StringBuffer strBuffer = new StringBuffer(capacity);
+         File file = ((FileDataSource)ds).getFile();
+         try
+         {
+            FileInputStream ins = new FileInputStream(file);
+            try
+            {
+               FileChannel channel = ins.getChannel();
+               // Pipes and special files report no size
+               long size = channel.size();
+               if (size > 0)
+                  return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            finally
+            {
+               ins.close();
+            }
+         }
+         catch (IOException e)
+         {
+            throw new WebServiceException("Unable to convert DataHandler to ByteBuffer: " + e.getMessage());
+         }
+      }
 
-         int len = reader.read(charBuffer, 0, capacity);
-         while (len > 0)
+      return ByteBuffer.wrap(convertToBytes(dh));
+   }
+
+   /**
+    * Get a stream that reads the content of the DataHandler.
+    *
+    * The content of a file or URL data source is streamed from its source, which can be read again.
+    * Other content is copied first: up to <code>threshold</code> bytes are kept in memory, larger content
+    * is written to a temp file, which is deleted when the returned stream is closed, or after it
+    * became unreachable.
+    */
+   public static InputStream convertToInputStream(DataHandler dh, int threshold)
+   {
+      DataSource ds = dh.getDataSource();
+      if (ds instanceof FileDataSource || ds instanceof URLDataSource)
+      {
+         try
+         {
+            return ds.getInputStream();
+         }
+         catch (IOException e)
          {
-            strBuffer.append(charBuffer, 0, len);
-            len = reader.read(charBuffer, 0, capacity);
+            throw new WebServiceException("Unable to convert DataHandler to InputStream: " + e.getMessage());
          }
-         return new ByteArrayInputStream(strBuffer.toString().getBytes());
+      }
+
+      final ThresholdOutputStream buffOS = new ThresholdOutputStream(threshold);
+      try
+      {
+         dh.writeTo(buffOS);
+         buffOS.close();
+         InputStream ins = new FilterInputStream(buffOS.getInputStream())
+         {
+            public void close() throws IOException
+            {
+               try
+               {
+                  super.close();
+               }
+               finally
+               {
+                  buffOS.dispose();
+               }
+            }
+         };
+
+         // The caller may drop the stream without closing it
+         if (buffOS.isInMemory() == false)
+            TempFileManager.deleteWhenUnreachable(ins, buffOS.getFile());
+
+         return ins;
       }
       catch (IOException e)
       {
-         throw e;
+         buffOS.dispose();
+         throw new WebServiceException("Unable to convert DataHandler to InputStream: " + e.getMessage());
       }
-      finally{
-         reader.close();
+   }
+
+   // The size of the content if it is known, or 0
+   private static int getContentLength(DataHandler dh)
+   {
+      DataSource ds = dh.getDataSource();
+      if (ds instanceof FileDataSource)
+      {
+         long length = ((FileDataSource)ds).getFile().length();
+         if (length < Integer.MAX_VALUE)
+            return (int)length;
       }
+      return 0;
+   }
+
+   /**
+    * Transform a Reader to an InputStream
+    * Background is that DocumentBuilder.parse() cannot take the Reader directly
+    *
+    * @deprecated encodes with the platform default charset, use {@link #transformReader(Reader, String)}
+    */
+   @Deprecated
+   public static InputStream transformReader(Reader reader) throws IOException
+   {
+      return new ReaderInputStream(reader, Charset.defaultCharset());
+   }
+
+   /**
+    * Transform a Reader to an InputStream that encodes with the given charset.
+    * The chars are encoded while the stream is read, the content is not held in memory.
+    * The reader is closed at the end of the input or when the stream is closed.
+    */
+   public static InputStream transformReader(Reader reader, String charsetName)
+   {
+      return new ReaderInputStream(reader, Charset.forName(charsetName));
    }
 
+   /**
+    * Get the JBossWS temp directory of the server, or null if there is no server config (the client).
+    * The directory is resolved once, see {@link TempFileManager}.
+    */
    public static File createTempDirectory() throws IOException
    {
-      File tmpdir = null;
+      return TempFileManager.getServerTempDirectory();
+   }
 
-      try
+   /**
+    * Returns its buffer without a copy when the content fills it exactly
+    */
+   private static final class SizedOutputStream extends ByteArrayOutputStream
+   {
+      SizedOutputStream(int size)
       {
-         // TODO: recursive dependency, ohoh
-
-         SPIProvider spiProvider = SPIProviderResolver.getInstance().getProvider();
-         ServerConfig config = spiProvider.getSPI(ServerConfigFactory.class).getServerConfig();        
-         tmpdir = new File(config.getServerTempDir().getCanonicalPath() + "/jbossws");
-         tmpdir.mkdirs();
+         super(size);
       }
-      catch (Throwable t)
+
+      byte[] getBytes()
       {
-         // Use the Java temp directory if there is no server config (the client)
+         return (count == buf.length ? buf : toByteArray());
       }
-
-      return tmpdir;
    }
 }
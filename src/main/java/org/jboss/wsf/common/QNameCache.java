@@ -0,0 +1,150 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+/**
+ * A bounded intern table for QName instances.
+ *
+ * The table is 4-way set associative: every (namespace URI, local part, prefix) triple
+ * hashes to a set of four slots, a new name is put first and evicts the oldest name of
+ * the set. Lookups and updates do not lock. QName is immutable, so a slot that is read
+ * while another thread replaces it always yields a fully initialized instance.
+ *
+ * Interning is best effort: as long as a name is not evicted, the same instance is
+ * returned, but two lookups of the same name may return different instances.
+ * Callers must still compare names with equals(), interned names are equal to
+ * names that are created with new QName(...).
+ *
+ * Set -Dorg.jboss.wsf.common.QNameCache.statistics=true to count the hits and misses.
+ */
+public final class QNameCache
+{
+   // The number of slots in a set
+   private static final int WAYS = 4;
+   // The number of slots, a power of two
+   private static final int SIZE = tableSize(Integer.getInteger("org.jboss.wsf.common.QNameCache.size", 1024));
+
+   // Counting is off by default, the shared counters are contended on the lookup path
+   private static final boolean statistics = Boolean.getBoolean("org.jboss.wsf.common.QNameCache.statistics");
+
+   private static final QName[] table = new QName[SIZE];
+   private static final AtomicLong hits = new AtomicLong();
+   private static final AtomicLong misses = new AtomicLong();
+
+   // Hide the constructor
+   private QNameCache()
+   {
+   }
+
+   /** Get a cached QName for a local part without namespace
+    */
+   public static QName intern(String localPart)
+   {
+      return intern("", localPart, "");
+   }
+
+   /** Get a cached QName for a namespace URI and local part
+    */
+   public static QName intern(String nsURI, String localPart)
+   {
+      return intern(nsURI, localPart, "");
+   }
+
+   /** Get a cached QName for a namespace URI, local part and prefix
+    */
+   public static QName intern(String nsURI, String localPart, String prefix)
+   {
+      if (nsURI == null)
+         nsURI = "";
+      if (prefix == null)
+         throw new IllegalArgumentException("Null prefix");
+      if (localPart == null)
+         throw new IllegalArgumentException("Null local part");
+
+      int hash = (nsURI.hashCode() * 31 + localPart.hashCode()) * 31 + prefix.hashCode();
+      hash ^= (hash >>> 16);
+      int set = (hash * WAYS) & (SIZE - WAYS);
+
+      for (int i = set; i < set + WAYS; i++)
+      {
+         QName qname = table[i];
+         if (qname == null)
+            break;
+
+         if (localPart.equals(qname.getLocalPart()) && nsURI.equals(qname.getNamespaceURI()) && prefix.equals(qname.getPrefix()))
+         {
+            if (statistics)
+               hits.incrementAndGet();
+            return qname;
+         }
+      }
+
+      if (statistics)
+         misses.incrementAndGet();
+
+      // Drop the oldest name of the set
+      QName qname = new QName(nsURI, localPart, prefix);
+      for (int i = set + WAYS - 1; i > set; i--)
+         table[i] = table[i - 1];
+      table[set] = qname;
+      return qname;
+   }
+
+   /** The number of lookups that returned a cached instance, zero if the statistics are disabled
+    */
+   public static long getHitCount()
+   {
+      return hits.get();
+   }
+
+   /** The number of lookups that created a new instance, zero if the statistics are disabled
+    */
+   public static long getMissCount()
+   {
+      return misses.get();
+   }
+
+   /** Remove all cached names and reset the counters
+    */
+   public static void clear()
+   {
+      for (int i = 0; i < SIZE; i++)
+         table[i] = null;
+
+      hits.set(0);
+      misses.set(0);
+   }
+
+   private static int tableSize(int size)
+   {
+      int tableSize = 16;
+      while (tableSize < size && tableSize < (1 << 20))
+         tableSize <<= 1;
+      return tableSize;
+   }
+}
@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * An InputStream that encodes the chars of a Reader on demand.
+ *
+ * The chars are read and encoded through fixed size buffers, the memory use does not
+ * depend on the length of the input. Malformed and unmappable chars are replaced with
+ * the charset's replacement, which gives the same bytes as String.getBytes().
+ * The Reader is closed at the end of the input or when the stream is closed.
+ */
+final class ReaderInputStream extends InputStream
+{
+   private static final int CHAR_BUFFER_SIZE = 1024;
+   private static final int BYTE_BUFFER_SIZE = 4096;
+
+   private final Reader reader;
+   private final CharsetEncoder encoder;
+   // The chars that were read and not yet encoded
+   private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+   // The bytes that were encoded and not yet returned, between position and limit
+   private final ByteBuffer bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+   // True, if the reader returned all chars
+   private boolean endOfInput;
+   // True, if the encoder returned all bytes
+   private boolean endOfOutput;
+
+   ReaderInputStream(Reader reader, Charset charset)
+   {
+      this.reader = reader;
+      this.encoder = charset.newEncoder();
+      encoder.onMalformedInput(CodingErrorAction.REPLACE);
+      encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+      chars.flip();
+      bytes.flip();
+   }
+
+   public int read() throws IOException
+   {
+      if (bytes.hasRemaining() == false && fill() == false)
+         return -1;
+
+      return bytes.get() & 0xFF;
+   }
+
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+      if (off < 0 || len < 0 || len > b.length - off)
+         throw new IndexOutOfBoundsException();
+      if (len == 0)
+         return 0;
+
+      if (bytes.hasRemaining() == false && fill() == false)
+         return -1;
+
+      int count = Math.min(len, bytes.remaining());
+      bytes.get(b, off, count);
+      return count;
+   }
+
+   public int available()
+   {
+      return bytes.remaining();
+   }
+
+   public void close() throws IOException
+   {
+      endOfInput = true;
+      endOfOutput = true;
+      reader.close();
+   }
+
+   // Encode the next bytes, return false at the end of the output
+   private boolean fill() throws IOException
+   {
+      bytes.clear();
+      while (bytes.position() == 0 && endOfOutput == false)
+      {
+         if (endOfInput == false)
+         {
+            chars.compact();
+            int count = reader.read(chars);
+            chars.flip();
+            if (count < 0)
+            {
+               endOfInput = true;
+               reader.close();
+            }
+         }
+
+         CoderResult result = encoder.encode(chars, bytes, endOfInput);
+         if (endOfInput && result.isUnderflow())
+         {
+            result = encoder.flush(bytes);
+            if (result.isUnderflow())
+               endOfOutput = true;
+         }
+      }
+      bytes.flip();
+      return bytes.hasRemaining();
+   }
+}
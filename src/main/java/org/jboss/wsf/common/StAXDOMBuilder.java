@@ -0,0 +1,336 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Builds DOM elements from a StAX cursor.
+ *
+ * Elements that are not of interest are skipped without creating any DOM nodes.
+ * The namespace declarations of the skipped ancestors are carried over to the
+ * element that is built, so that the result is a self contained fragment.
+ */
+final class StAXDOMBuilder
+{
+   // A local part that matches any element
+   static final String WILDCARD = "*";
+
+   private static final XMLInputFactory inputFactory;
+   static
+   {
+      inputFactory = XMLInputFactory.newInstance();
+      inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+      // disable XXE
+      inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+   }
+
+   // Hide the constructor
+   private StAXDOMBuilder()
+   {
+   }
+
+   /**
+    * Parse the stream and build the first element that matches the path.
+    * If descendant is true, the path must contain a single name that may match at any depth.
+    */
+   static Element parse(InputStream xmlStream, QName[] path, boolean descendant) throws IOException
+   {
+      try
+      {
+         XMLStreamReader reader = inputFactory.createXMLStreamReader(xmlStream);
+         try
+         {
+            return parse(reader, path, descendant);
+         }
+         finally
+         {
+            reader.close();
+         }
+      }
+      catch (XMLStreamException ex)
+      {
+         IOException ioex = new IOException(ex.toString());
+         ioex.initCause(ex);
+         throw ioex;
+      }
+   }
+
+   private static Element parse(XMLStreamReader reader, QName[] path, boolean descendant) throws XMLStreamException
+   {
+      // The namespace declarations of the open ancestors as prefix/uri pairs
+      List<String> nsDecls = new ArrayList<String>();
+      int[] nsMarks = new int[16];
+      int depth = 0;
+
+      while (reader.hasNext())
+      {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT)
+         {
+            int step = (descendant ? 0 : depth);
+            if (matches(reader, path[step]))
+            {
+               if (descendant || step == path.length - 1)
+                  return buildElement(reader, nsDecls);
+            }
+            else if (descendant == false)
+            {
+               skipElement(reader);
+               continue;
+            }
+
+            if (depth == nsMarks.length)
+            {
+               int[] marks = new int[2 * depth];
+               System.arraycopy(nsMarks, 0, marks, 0, depth);
+               nsMarks = marks;
+            }
+            nsMarks[depth++] = nsDecls.size();
+            for (int i = 0; i < reader.getNamespaceCount(); i++)
+            {
+               nsDecls.add(reader.getNamespacePrefix(i));
+               nsDecls.add(reader.getNamespaceURI(i));
+            }
+         }
+         else if (event == XMLStreamConstants.END_ELEMENT)
+         {
+            if (depth == 0)
+               break;
+
+            int mark = nsMarks[--depth];
+            while (nsDecls.size() > mark)
+               nsDecls.remove(nsDecls.size() - 1);
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Build the next element from a reader that is positioned before or on a START_ELEMENT, or null if there is none.
+    * On return the reader is positioned on the matching END_ELEMENT.
+    */
+   static Element buildElement(XMLStreamReader reader) throws XMLStreamException
+   {
+      int event = reader.getEventType();
+      while (event != XMLStreamConstants.START_ELEMENT)
+      {
+         if (reader.hasNext() == false)
+            return null;
+
+         event = reader.next();
+      }
+      return buildElement(reader, new ArrayList<String>(0));
+   }
+
+   /**
+    * Build the element the reader is positioned on.
+    * On return the reader is positioned on the matching END_ELEMENT.
+    */
+   static Element buildElement(XMLStreamReader reader, List<String> inheritedNsDecls) throws XMLStreamException
+   {
+      Document doc;
+      DocumentBuilder builder = DOMUtils.borrowDocumentBuilder();
+      try
+      {
+         doc = builder.newDocument();
+      }
+      finally
+      {
+         DOMUtils.releaseDocumentBuilder(builder);
+      }
+
+      Element root = createElement(doc, reader);
+      doc.appendChild(root);
+
+      // Carry over the declarations of the ancestors, inner most first
+      for (int i = inheritedNsDecls.size() - 2; i >= 0; i -= 2)
+      {
+         String prefix = inheritedNsDecls.get(i);
+         String nsURI = inheritedNsDecls.get(i + 1);
+         if (prefix == null || prefix.length() == 0)
+         {
+            if (root.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns") == false)
+               root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns", (nsURI != null ? nsURI : ""));
+         }
+         else if (root.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix) == false)
+         {
+            root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:" + prefix, nsURI);
+         }
+      }
+
+      readContent(reader, root);
+      return root;
+   }
+
+   /**
+    * Read the content of the current element into the given parent.
+    * Adjacent character events are merged into a single text node, like the DOM parser does.
+    * On return the reader is positioned on the matching END_ELEMENT.
+    */
+   static void readContent(XMLStreamReader reader, Node parent) throws XMLStreamException
+   {
+      Document doc = (parent instanceof Document ? (Document)parent : parent.getOwnerDocument());
+      Node current = parent;
+      int depth = 0;
+      // The chars of the text node that is not yet appended
+      StringBuilder text = new StringBuilder();
+      while (true)
+      {
+         int event = reader.next();
+         if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE)
+         {
+            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            continue;
+         }
+
+         if (text.length() > 0)
+         {
+            current.appendChild(doc.createTextNode(text.toString()));
+            text.setLength(0);
+         }
+
+         switch (event)
+         {
+            case XMLStreamConstants.START_ELEMENT:
+            {
+               Element child = createElement(doc, reader);
+               current.appendChild(child);
+               current = child;
+               depth++;
+               break;
+            }
+            case XMLStreamConstants.END_ELEMENT:
+            {
+               if (depth == 0)
+                  return;
+
+               current = current.getParentNode();
+               depth--;
+               break;
+            }
+            case XMLStreamConstants.CDATA:
+            {
+               current.appendChild(doc.createCDATASection(reader.getText()));
+               break;
+            }
+            case XMLStreamConstants.COMMENT:
+            {
+               current.appendChild(doc.createComment(reader.getText()));
+               break;
+            }
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+            {
+               current.appendChild(doc.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+               break;
+            }
+            case XMLStreamConstants.END_DOCUMENT:
+            {
+               return;
+            }
+         }
+      }
+   }
+
+   private static Element createElement(Document doc, XMLStreamReader reader)
+   {
+      String nsURI = reader.getNamespaceURI();
+      String prefix = reader.getPrefix();
+      String localName = reader.getLocalName();
+
+      Element element;
+      if (nsURI == null || nsURI.length() == 0)
+         element = doc.createElementNS(null, localName);
+      else if (prefix == null || prefix.length() == 0)
+         element = doc.createElementNS(nsURI, localName);
+      else
+         element = doc.createElementNS(nsURI, prefix + ":" + localName);
+
+      for (int i = 0; i < reader.getNamespaceCount(); i++)
+      {
+         String nsPrefix = reader.getNamespacePrefix(i);
+         String nsValue = reader.getNamespaceURI(i);
+         if (nsPrefix == null || nsPrefix.length() == 0)
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns", (nsValue != null ? nsValue : ""));
+         else
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:" + nsPrefix, nsValue);
+      }
+
+      for (int i = 0; i < reader.getAttributeCount(); i++)
+      {
+         String atURI = reader.getAttributeNamespace(i);
+         String atPrefix = reader.getAttributePrefix(i);
+         String atName = reader.getAttributeLocalName(i);
+         if (atURI == null || atURI.length() == 0)
+            element.setAttributeNS(null, atName, reader.getAttributeValue(i));
+         else
+            element.setAttributeNS(atURI, (atPrefix == null || atPrefix.length() == 0 ? atName : atPrefix + ":" + atName), reader.getAttributeValue(i));
+      }
+
+      return element;
+   }
+
+   private static boolean matches(XMLStreamReader reader, QName name)
+   {
+      String localPart = name.getLocalPart();
+      if (WILDCARD.equals(localPart) == false && localPart.equals(reader.getLocalName()) == false)
+         return false;
+
+      // A name without namespace matches on the local name only
+      String nsURI = name.getNamespaceURI();
+      if (nsURI.length() == 0)
+         return true;
+
+      return nsURI.equals(reader.getNamespaceURI());
+   }
+
+   private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+   {
+      int level = 1;
+      while (level > 0)
+      {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT)
+            level++;
+         else if (event == XMLStreamConstants.END_ELEMENT)
+            level--;
+      }
+   }
+}
@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.IOException;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stax.StAXSource;
+
+import org.w3c.dom.Element;
+
+/**
+ * Builds the element of a StAXSource.
+ *
+ * StAXSource is part of JAXP 1.4, this class is only loaded by DOMUtils
+ * if the VM provides it.
+ */
+final class StAXSourceConverter
+{
+   // Hide the constructor
+   private StAXSourceConverter()
+   {
+   }
+
+   /**
+    * Build the element of a StAXSource that provides a stream reader,
+    * or return null for an event reader and other sources.
+    */
+   static Element toElement(Source source) throws IOException
+   {
+      if ((source instanceof StAXSource) == false)
+         return null;
+
+      XMLStreamReader reader = ((StAXSource)source).getXMLStreamReader();
+      if (reader == null)
+         return null;
+
+      try
+      {
+         return StAXDOMBuilder.buildElement(reader);
+      }
+      catch (XMLStreamException ex)
+      {
+         IOException ioex = new IOException();
+         ioex.initCause(ex);
+         throw ioex;
+      }
+   }
+}
@@ -0,0 +1,341 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.jboss.logging.Logger;
+import org.jboss.wsf.spi.SPIProvider;
+import org.jboss.wsf.spi.SPIProviderResolver;
+import org.jboss.wsf.spi.management.ServerConfig;
+import org.jboss.wsf.spi.management.ServerConfigFactory;
+
+/**
+ * The temp directory of JBossWS and the temp files in it.
+ *
+ * The directory is the "jbossws" directory in the server temp directory, or java.io.tmpdir
+ * if there is no server config (the client). It is resolved once through the ServerConfig,
+ * a failed lookup is cached as well. {@link #invalidate()} drops the cached result, the next
+ * access resolves it again, e.g. after the server config became available.
+ *
+ * Temp files can be allocated in a subdirectory per deployment, which is removed by
+ * {@link #cleanup(String)} when the deployment goes away. Files and directories are deleted
+ * asynchronously by a daemon thread, which is stopped by {@link #shutdown()}.
+ * A file that belongs to an object, e.g. a stream, can be deleted when the object becomes
+ * unreachable with {@link #deleteWhenUnreachable(Object, File)}.
+ */
+public final class TempFileManager
+{
+   private static Logger log = Logger.getLogger(TempFileManager.class);
+
+   // Marks a failed lookup of the server temp directory
+   private static final File NO_SERVER_TEMP_DIR = new File("");
+
+   // The resolved server temp directory, null if not resolved
+   private static volatile File serverTempDir;
+   // The subdirectories of the deployments that were created
+   private static final ConcurrentMap<String, File> deploymentDirectories = new ConcurrentHashMap<String, File>();
+   // Deletes files in the background, created on demand
+   private static ExecutorService cleanupExecutor;
+
+   // Notified when the owner of a tracked file becomes unreachable
+   private static final ReferenceQueue<Object> orphanQueue = new ReferenceQueue<Object>();
+   // Keeps the references of the tracked files alive
+   private static final Map<FileReference, Boolean> trackedFiles = new ConcurrentHashMap<FileReference, Boolean>();
+
+   // Hide the constructor
+   private TempFileManager()
+   {
+   }
+
+   /**
+    * Get the JBossWS temp directory of the server, or null if there is no server config
+    */
+   public static File getServerTempDirectory()
+   {
+      File dir = serverTempDir;
+      if (dir == null)
+      {
+         dir = resolveServerTempDirectory();
+         if (dir != null)
+         {
+            serverTempDir = dir;
+            // Subdirectories that were created in java.io.tmpdir are not used any longer
+            deploymentDirectories.clear();
+         }
+         else
+         {
+            serverTempDir = NO_SERVER_TEMP_DIR;
+         }
+      }
+      return (dir != NO_SERVER_TEMP_DIR ? dir : null);
+   }
+
+   /**
+    * Get the JBossWS temp directory of the server, or java.io.tmpdir if there is no server config
+    */
+   public static File getTempDirectory()
+   {
+      File dir = getServerTempDirectory();
+      return (dir != null ? dir : new File(System.getProperty("java.io.tmpdir")));
+   }
+
+   /**
+    * Drop the cached directories, e.g. after the server config was started or changed
+    */
+   public static void invalidate()
+   {
+      serverTempDir = null;
+      deploymentDirectories.clear();
+   }
+
+   /**
+    * Create an empty temp file in the temp directory
+    */
+   public static File createTempFile(String prefix, String suffix) throws IOException
+   {
+      return createTempFile(null, prefix, suffix);
+   }
+
+   /**
+    * Create an empty temp file in the subdirectory of the given deployment.
+    * A null deployment creates the file in the temp directory itself.
+    */
+   public static File createTempFile(String deployment, String prefix, String suffix) throws IOException
+   {
+      expungeOrphans();
+
+      File dir = getDirectory(deployment);
+      try
+      {
+         return File.createTempFile(prefix, suffix, dir);
+      }
+      catch (IOException ex)
+      {
+         // The cached directory may have been removed
+         if (dir.isDirectory())
+            throw ex;
+
+         dir.mkdirs();
+         return File.createTempFile(prefix, suffix, dir);
+      }
+   }
+
+   /**
+    * Get the subdirectory of the given deployment, it is created on first access.
+    * A null deployment returns the temp directory itself.
+    */
+   public static File getDirectory(String deployment)
+   {
+      if (deployment == null)
+         return getTempDirectory();
+
+      File dir = deploymentDirectories.get(deployment);
+      if (dir == null)
+      {
+         dir = new File(getTempDirectory(), toDirectoryName(deployment));
+         dir.mkdirs();
+         File previous = deploymentDirectories.putIfAbsent(deployment, dir);
+         if (previous != null)
+            dir = previous;
+      }
+      return dir;
+   }
+
+   /**
+    * Delete the subdirectory of the given deployment and its files in the background
+    */
+   public static void cleanup(String deployment)
+   {
+      if (deployment == null)
+         throw new IllegalArgumentException("Deployment cannot be null");
+
+      File dir = deploymentDirectories.remove(deployment);
+      if (dir == null)
+         dir = new File(getTempDirectory(), toDirectoryName(deployment));
+
+      deleteLater(dir);
+   }
+
+   /**
+    * Delete a file or a directory with its content in the background
+    */
+   public static void deleteLater(final File file)
+   {
+      getCleanupExecutor().execute(new Runnable()
+      {
+         public void run()
+         {
+            delete(file);
+         }
+      });
+   }
+
+   /**
+    * Delete the file in the background when the owner becomes unreachable.
+    * This is a safety net for owners that are not closed, deleting the file earlier is fine.
+    */
+   public static void deleteWhenUnreachable(Object owner, File file)
+   {
+      expungeOrphans();
+      trackedFiles.put(new FileReference(owner, file), Boolean.TRUE);
+   }
+
+   private static void expungeOrphans()
+   {
+      FileReference ref = (FileReference)orphanQueue.poll();
+      while (ref != null)
+      {
+         if (trackedFiles.remove(ref) != null && ref.file.exists())
+            deleteLater(ref.file);
+
+         ref = (FileReference)orphanQueue.poll();
+      }
+   }
+
+   private static File resolveServerTempDirectory()
+   {
+      try
+      {
+         SPIProvider spiProvider = SPIProviderResolver.getInstance().getProvider();
+         ServerConfig config = spiProvider.getSPI(ServerConfigFactory.class).getServerConfig();
+         File tmpdir = new File(config.getServerTempDir().getCanonicalPath() + "/jbossws");
+         tmpdir.mkdirs();
+         return tmpdir;
+      }
+      catch (Throwable t)
+      {
+         if (log.isDebugEnabled())
+            log.debug("Cannot obtain server temp directory, using java.io.tmpdir: " + t);
+         return null;
+      }
+   }
+
+   // Replace the chars that are not safe in a file name
+   private static String toDirectoryName(String deployment)
+   {
+      if (deployment == null)
+         throw new IllegalArgumentException("Deployment cannot be null");
+
+      StringBuilder name = new StringBuilder(deployment.length());
+      for (int i = 0; i < deployment.length(); i++)
+      {
+         char ch = deployment.charAt(i);
+         boolean safe = (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '.' || ch == '-' || ch == '_';
+         name.append(safe ? ch : '_');
+      }
+
+      // Do not leave the temp directory
+      if (name.length() == 0 || name.toString().equals(".") || name.toString().equals(".."))
+         name.append("_deployment");
+
+      return name.toString();
+   }
+
+   /**
+    * Stop the cleanup thread after the pending deletions.
+    * A later deletion starts a new thread.
+    */
+   public static synchronized void shutdown()
+   {
+      if (cleanupExecutor != null)
+      {
+         cleanupExecutor.shutdown();
+         cleanupExecutor = null;
+      }
+   }
+
+   private static synchronized ExecutorService getCleanupExecutor()
+   {
+      if (cleanupExecutor == null)
+      {
+         cleanupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+         {
+            public Thread newThread(Runnable r)
+            {
+               Thread thread = new Thread(r, "JBossWS temp file cleanup");
+               thread.setDaemon(true);
+               // Do not keep the class loader of the deployment that started the thread
+               thread.setContextClassLoader(TempFileManager.class.getClassLoader());
+               return thread;
+            }
+         });
+      }
+      return cleanupExecutor;
+   }
+
+   private static void delete(File file)
+   {
+      // Delete a linked directory, but not its content
+      File[] children = (isLink(file) ? null : file.listFiles());
+      if (children != null)
+      {
+         for (File child : children)
+            delete(child);
+      }
+
+      if (file.delete() == false && file.exists())
+      {
+         log.debug("Cannot delete temp file: " + file);
+         file.deleteOnExit();
+      }
+   }
+
+   private static boolean isLink(File file)
+   {
+      try
+      {
+         File parent = file.getAbsoluteFile().getParentFile();
+         if (parent == null)
+            return false;
+
+         File path = new File(parent.getCanonicalFile(), file.getName());
+         return path.getCanonicalFile().equals(path) == false;
+      }
+      catch (IOException ex)
+      {
+         return true;
+      }
+   }
+
+   private static final class FileReference extends WeakReference<Object>
+   {
+      private final File file;
+
+      FileReference(Object owner, File file)
+      {
+         super(owner, orphanQueue);
+         this.file = file;
+      }
+   }
+}
@@ -0,0 +1,444 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An OutputStream that keeps its content in memory up to a threshold and then moves it to a temp file.
+ *
+ * In memory, the content is kept in chunks from the IOUtils buffer pool, which are not copied when
+ * the content grows. Above the threshold, the chunks are written to a temp file in
+ * {@link TempFileManager#getTempDirectory()} and further writes go to that file.
+ *
+ * After the stream is closed, the content is read back with {@link #getInputStream()} or
+ * {@link #getByteBuffer()}, which maps the file into memory. {@link #dispose()} hands the chunks
+ * back to the pool and deletes the file, streams and mapped buffers that were obtained before must
+ * not be used afterwards.
+ *
+ * <pre>
+ * ThresholdOutputStream out = new ThresholdOutputStream();
+ * try
+ * {
+ *    dataHandler.writeTo(out);
+ *    out.close();
+ *    ...
+ * }
+ * finally
+ * {
+ *    out.dispose();
+ * }
+ * </pre>
+ *
+ * The default threshold is 1MB, set -Dorg.jboss.wsf.common.ThresholdOutputStream.threshold to change it.
+ * A ThresholdOutputStream is not thread safe.
+ */
+public final class ThresholdOutputStream extends OutputStream
+{
+   private static final int DEFAULT_THRESHOLD = Integer.getInteger("org.jboss.wsf.common.ThresholdOutputStream.threshold", 1024 * 1024);
+
+   private final int threshold;
+   // The chunks of the content while it is in memory, all but the last one are full
+   private final List<byte[]> chunks = new ArrayList<byte[]>();
+   // The last chunk and the number of bytes in it
+   private byte[] current;
+   private int pos;
+   // The temp file and the buffer for the writes to it, after the content was moved there
+   private File file;
+   private FileChannel channel;
+   private ByteBuffer fileBuffer;
+   private long size;
+   // True, if a buffer that wraps a chunk was handed out, the chunks are not returned to the pool then
+   private boolean chunksShared;
+   private boolean closed;
+   private boolean disposed;
+
+   /**
+    * Create a stream with the default threshold
+    */
+   public ThresholdOutputStream()
+   {
+      this(DEFAULT_THRESHOLD);
+   }
+
+   /**
+    * Create a stream that keeps up to <code>threshold</code> bytes in memory
+    */
+   public ThresholdOutputStream(int threshold)
+   {
+      this.threshold = Math.max(threshold, 0);
+   }
+
+   public void write(int b) throws IOException
+   {
+      if (current != null && pos < current.length && size < threshold && closed == false)
+      {
+         current[pos++] = (byte)b;
+         size++;
+      }
+      else if (channel != null && closed == false)
+      {
+         if (fileBuffer.hasRemaining() == false)
+            writeFileBuffer();
+
+         fileBuffer.put((byte)b);
+         size++;
+      }
+      else
+      {
+         write(new byte[] { (byte)b }, 0, 1);
+      }
+   }
+
+   public void write(byte[] b, int off, int len) throws IOException
+   {
+      if (closed)
+         throw new IOException("Stream closed");
+
+      if (channel == null && len > threshold - size)
+         spill();
+
+      if (channel == null)
+      {
+         int end = off + len;
+         while (off < end)
+         {
+            if (current == null || pos == current.length)
+            {
+               current = BufferPool.acquireArray();
+               chunks.add(current);
+               pos = 0;
+            }
+
+            int count = Math.min(end - off, current.length - pos);
+            System.arraycopy(b, off, current, pos, count);
+            pos += count;
+            off += count;
+         }
+      }
+      else if (len > fileBuffer.remaining())
+      {
+         writeFileBuffer();
+         if (len >= fileBuffer.capacity())
+            writeFully(ByteBuffer.wrap(b, off, len));
+         else
+            fileBuffer.put(b, off, len);
+      }
+      else
+      {
+         fileBuffer.put(b, off, len);
+      }
+
+      size += len;
+   }
+
+   public void flush() throws IOException
+   {
+      if (channel != null && closed == false)
+         writeFileBuffer();
+   }
+
+   /**
+    * Close the stream for writing, the content remains available until it is disposed
+    */
+   public void close() throws IOException
+   {
+      if (closed)
+         return;
+
+      closed = true;
+      if (channel != null)
+      {
+         try
+         {
+            writeFileBuffer();
+         }
+         finally
+         {
+            closeChannel();
+         }
+      }
+   }
+
+   /** The number of bytes written */
+   public long size()
+   {
+      return size;
+   }
+
+   /** True, if the content is kept in memory */
+   public boolean isInMemory()
+   {
+      return file == null;
+   }
+
+   /** The temp file, or null if the content is kept in memory */
+   File getFile()
+   {
+      return file;
+   }
+
+   /**
+    * Get a stream that reads the content of the closed stream.
+    * Content in memory is read without a copy.
+    */
+   public InputStream getInputStream() throws IOException
+   {
+      assertReadable();
+      if (file != null)
+         return new FileInputStream(file);
+
+      return new ChunkInputStream(chunks, size);
+   }
+
+   /**
+    * Get a read-only buffer with the content of the closed stream.
+    * A temp file is mapped into memory, content that fits into a single chunk is not copied.
+    * Such a chunk is not handed back to the pool, the buffer remains valid after {@link #dispose()}.
+    */
+   public ByteBuffer getByteBuffer() throws IOException
+   {
+      assertReadable();
+      if (size > Integer.MAX_VALUE)
+         throw new IOException("Content too large for a ByteBuffer: " + size);
+
+      if (file != null)
+      {
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+         try
+         {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+         }
+         finally
+         {
+            raf.close();
+         }
+      }
+
+      if (chunks.size() == 1)
+      {
+         chunksShared = true;
+         return ByteBuffer.wrap(chunks.get(0), 0, (int)size).asReadOnlyBuffer();
+      }
+
+      byte[] bytes = new byte[(int)size];
+      int off = 0;
+      for (byte[] chunk : chunks)
+      {
+         int count = Math.min(chunk.length, bytes.length - off);
+         System.arraycopy(chunk, 0, bytes, off, count);
+         off += count;
+      }
+      return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+   }
+
+   /**
+    * Release the content: hand the chunks back to the pool and delete the temp file.
+    */
+   public void dispose()
+   {
+      if (disposed)
+         return;
+
+      disposed = true;
+      closed = true;
+      if (chunksShared == false)
+      {
+         for (byte[] chunk : chunks)
+            BufferPool.release(chunk);
+      }
+      chunks.clear();
+      current = null;
+
+      if (channel != null)
+      {
+         try
+         {
+            closeChannel();
+         }
+         catch (IOException ex)
+         {
+            // ignore
+         }
+      }
+
+      if (file != null)
+      {
+         // A file that is still open or mapped cannot be deleted on some platforms
+         if (file.delete() == false)
+            file.deleteOnExit();
+      }
+   }
+
+   private void assertReadable()
+   {
+      if (disposed)
+         throw new IllegalStateException("Stream disposed");
+      if (closed == false)
+         throw new IllegalStateException("Stream not closed");
+   }
+
+   // Move the content to a temp file
+   private void spill() throws IOException
+   {
+      File tmpFile = TempFileManager.createTempFile("jbossws-", ".tmp");
+      RandomAccessFile raf = null;
+      try
+      {
+         raf = new RandomAccessFile(tmpFile, "rw");
+         channel = raf.getChannel();
+         for (byte[] chunk : chunks)
+            writeFully(ByteBuffer.wrap(chunk, 0, (chunk == current ? pos : chunk.length)));
+      }
+      catch (IOException ex)
+      {
+         channel = null;
+         if (raf != null)
+            raf.close();
+
+         tmpFile.delete();
+         throw ex;
+      }
+      file = tmpFile;
+
+      // Keep one chunk to buffer the writes to the file
+      byte[] bytes = (current != null ? current : BufferPool.acquireArray());
+      for (byte[] chunk : chunks)
+      {
+         if (chunk != bytes)
+            BufferPool.release(chunk);
+      }
+      chunks.clear();
+      chunks.add(bytes);
+      current = null;
+      fileBuffer = ByteBuffer.wrap(bytes);
+   }
+
+   private void writeFileBuffer() throws IOException
+   {
+      fileBuffer.flip();
+      writeFully(fileBuffer);
+      fileBuffer.clear();
+   }
+
+   private void writeFully(ByteBuffer buffer) throws IOException
+   {
+      while (buffer.hasRemaining())
+         channel.write(buffer);
+   }
+
+   private void closeChannel() throws IOException
+   {
+      FileChannel fc = channel;
+      channel = null;
+      fileBuffer = null;
+      fc.close();
+   }
+
+   /**
+    * Reads the chunks of the content in memory
+    */
+   private static final class ChunkInputStream extends InputStream
+   {
+      private final List<byte[]> chunks;
+      private final long size;
+      private long offset;
+      private int chunkIndex;
+      private int chunkPos;
+
+      ChunkInputStream(List<byte[]> chunks, long size)
+      {
+         this.chunks = chunks;
+         this.size = size;
+      }
+
+      public int read()
+      {
+         if (offset == size)
+            return -1;
+
+         byte[] chunk = nextChunk();
+         offset++;
+         return chunk[chunkPos++] & 0xFF;
+      }
+
+      public int read(byte[] b, int off, int len)
+      {
+         if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+         if (len == 0)
+            return 0;
+         if (offset == size)
+            return -1;
+
+         byte[] chunk = nextChunk();
+         int count = (int)Math.min(Math.min(len, chunk.length - chunkPos), size - offset);
+         System.arraycopy(chunk, chunkPos, b, off, count);
+         chunkPos += count;
+         offset += count;
+         return count;
+      }
+
+      public long skip(long n)
+      {
+         long count = Math.min(Math.max(n, 0), size - offset);
+         long skipped = 0;
+         while (skipped < count)
+         {
+            byte[] chunk = nextChunk();
+            int step = (int)Math.min(count - skipped, chunk.length - chunkPos);
+            chunkPos += step;
+            skipped += step;
+         }
+         offset += count;
+         return count;
+      }
+
+      public int available()
+      {
+         return (int)Math.min(size - offset, Integer.MAX_VALUE);
+      }
+
+      // The chunk that holds the byte at offset
+      private byte[] nextChunk()
+      {
+         byte[] chunk = chunks.get(chunkIndex);
+         if (chunkPos == chunk.length)
+         {
+            chunk = chunks.get(++chunkIndex);
+            chunkPos = 0;
+         }
+         return chunk;
+      }
+   }
+}
@@ -0,0 +1,535 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.wsf.common;
+
+// $Id$
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.security.MessageDigest;
+
+/**
+ * The character sink that DOMWriter prints to.
+ *
+ * Like PrintWriter, an output does not throw IOExceptions. The first error
+ * is remembered and reported by {@link #checkError()}.
+ */
+abstract class XMLOutput
+{
+   abstract void write(char ch);
+
+   abstract void write(String str, int off, int len);
+
+   void write(String str)
+   {
+      if (str == null)
+         str = "null";
+
+      write(str, 0, str.length());
+   }
+
+   abstract void flush();
+
+   /** Flush the output and return true if an error occured */
+   abstract boolean checkError();
+
+   /**
+    * Prints to a Writer through a PrintWriter
+    */
+   static final class WriterOutput extends XMLOutput
+   {
+      private final PrintWriter out;
+
+      WriterOutput(Writer writer)
+      {
+         this.out = (writer instanceof PrintWriter ? (PrintWriter)writer : new PrintWriter(writer));
+      }
+
+      void write(char ch)
+      {
+         out.write(ch);
+      }
+
+      void write(String str, int off, int len)
+      {
+         out.write(str, off, len);
+      }
+
+      void flush()
+      {
+         out.flush();
+      }
+
+      boolean checkError()
+      {
+         return out.checkError();
+      }
+   }
+
+   /**
+    * Passes at most a given number of chars to another output and then writes a cut marker.
+    * The write that exceeds the limit throws a LimitReachedException.
+    */
+   static final class LimitedOutput extends XMLOutput
+   {
+      private final XMLOutput target;
+      private final int maxLength;
+      private final String cutMarker;
+      private int length;
+
+      LimitedOutput(XMLOutput target, int maxLength, String cutMarker)
+      {
+         this.target = target;
+         this.maxLength = maxLength;
+         this.cutMarker = cutMarker;
+      }
+
+      void write(char ch)
+      {
+         // Do not split a surrogate pair
+         if (length == maxLength || (length == maxLength - 1 && Character.isHighSurrogate(ch)))
+            cut();
+
+         target.write(ch);
+         length++;
+      }
+
+      void write(String str, int off, int len)
+      {
+         int fit = maxLength - length;
+         if (len <= fit)
+         {
+            target.write(str, off, len);
+            length += len;
+            return;
+         }
+
+         if (fit > 0 && Character.isHighSurrogate(str.charAt(off + fit - 1)))
+            fit--;
+
+         if (fit > 0)
+            target.write(str, off, fit);
+
+         length += fit;
+         cut();
+      }
+
+      void flush()
+      {
+         target.flush();
+      }
+
+      boolean checkError()
+      {
+         return target.checkError();
+      }
+
+      private void cut()
+      {
+         if (cutMarker != null)
+            target.write(cutMarker);
+
+         throw LimitReachedException.INSTANCE;
+      }
+   }
+
+   /**
+    * Thrown by a LimitedOutput to stop the traversal
+    */
+   static final class LimitReachedException extends RuntimeException
+   {
+      private static final long serialVersionUID = 1L;
+
+      static final LimitReachedException INSTANCE = new LimitReachedException();
+
+      // There is no use for a stack trace
+      public Throwable fillInStackTrace()
+      {
+         return this;
+      }
+   }
+
+   /**
+    * Appends to a StringBuilder
+    */
+   static final class BufferOutput extends XMLOutput
+   {
+      private final StringBuilder buffer;
+
+      BufferOutput(StringBuilder buffer)
+      {
+         this.buffer = buffer;
+      }
+
+      StringBuilder getBuffer()
+      {
+         return buffer;
+      }
+
+      void write(char ch)
+      {
+         buffer.append(ch);
+      }
+
+      void write(String str, int off, int len)
+      {
+         buffer.append(str, off, off + len);
+      }
+
+      void flush()
+      {
+      }
+
+      boolean checkError()
+      {
+         return false;
+      }
+   }
+
+   /**
+    * Encodes characters into a reusable byte buffer that is drained to an OutputStream, a channel or a digest.
+    *
+    * UTF-8, US-ASCII and ISO-8859-1 are encoded inline, other charsets go through a CharsetEncoder.
+    * Malformed and unmappable characters are replaced with the charset's replacement, which gives
+    * the same bytes as an OutputStreamWriter.
+    */
+   static final class ByteOutput extends XMLOutput
+   {
+      private static final int BUFFER_SIZE = 8192;
+
+      private static final int UTF8 = 1;
+      private static final int ASCII = 2;
+      private static final int LATIN1 = 3;
+      private static final int OTHER = 0;
+
+      private OutputStream out;
+      private WritableByteChannel channel;
+      private MessageDigest digest;
+
+      private final Charset charset;
+      private final int encoding;
+      private final byte[] bytes = new byte[BUFFER_SIZE];
+      private final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+      private int count;
+      // A high surrogate that waits for its low surrogate
+      private char pendingHigh;
+
+      // Used for charsets that are not encoded inline
+      private final CharsetEncoder encoder;
+      private final CharBuffer charBuffer;
+
+      private IOException error;
+
+      ByteOutput(OutputStream out, String charsetName)
+      {
+         this(charsetName);
+         this.out = out;
+      }
+
+      ByteOutput(WritableByteChannel channel, String charsetName)
+      {
+         this(charsetName);
+         this.channel = channel;
+      }
+
+      ByteOutput(MessageDigest digest, String charsetName)
+      {
+         this(charsetName);
+         this.digest = digest;
+      }
+
+      private ByteOutput(String charsetName)
+      {
+         charset = forName(charsetName);
+         String name = charset.name();
+         if ("UTF-8".equals(name))
+            encoding = UTF8;
+         else if ("US-ASCII".equals(name))
+            encoding = ASCII;
+         else if ("ISO-8859-1".equals(name))
+            encoding = LATIN1;
+         else
+            encoding = OTHER;
+
+         if (encoding == OTHER)
+         {
+            encoder = charset.newEncoder();
+            encoder.onMalformedInput(CodingErrorAction.REPLACE);
+            encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+            charBuffer = CharBuffer.allocate(BUFFER_SIZE / 4);
+         }
+         else
+         {
+            encoder = null;
+            charBuffer = null;
+         }
+      }
+
+      static Charset forName(String charsetName)
+      {
+         try
+         {
+            return Charset.forName(charsetName);
+         }
+         catch (IllegalCharsetNameException ex)
+         {
+            throw new IllegalArgumentException("Unsupported encoding: " + charsetName);
+         }
+         catch (UnsupportedCharsetException ex)
+         {
+            throw new IllegalArgumentException("Unsupported encoding: " + charsetName);
+         }
+      }
+
+      /** True, if this output encodes to the given charset */
+      boolean isCharset(String charsetName)
+      {
+         return charset.equals(forName(charsetName));
+      }
+
+      /** Write to another stream, pending output is discarded */
+      void reset(OutputStream out)
+      {
+         this.out = out;
+         this.channel = null;
+         this.digest = null;
+         count = 0;
+         pendingHigh = 0;
+         error = null;
+         if (encoding == OTHER)
+         {
+            encoder.reset();
+            charBuffer.clear();
+         }
+      }
+
+      void write(char ch)
+      {
+         if (encoding == OTHER)
+         {
+            if (charBuffer.hasRemaining() == false)
+               encodeChars();
+
+            charBuffer.put(ch);
+         }
+         else if (ch < 0x80 && pendingHigh == 0)
+         {
+            if (count == BUFFER_SIZE)
+               drain();
+
+            bytes[count++] = (byte)ch;
+         }
+         else
+         {
+            encodeInline(ch);
+         }
+      }
+
+      void write(String str, int off, int len)
+      {
+         if (encoding == OTHER)
+         {
+            int end = off + len;
+            while (off < end)
+            {
+               if (charBuffer.hasRemaining() == false)
+                  encodeChars();
+
+               int chunk = Math.min(end - off, charBuffer.remaining());
+               int pos = charBuffer.position();
+               str.getChars(off, off + chunk, charBuffer.array(), pos);
+               charBuffer.position(pos + chunk);
+               off += chunk;
+            }
+            return;
+         }
+
+         for (int i = off, end = off + len; i < end; i++)
+         {
+            char ch = str.charAt(i);
+            if (ch < 0x80 && pendingHigh == 0)
+            {
+               if (count == BUFFER_SIZE)
+                  drain();
+
+               bytes[count++] = (byte)ch;
+            }
+            else
+            {
+               encodeInline(ch);
+            }
+         }
+      }
+
+      void flush()
+      {
+         if (encoding == OTHER)
+            encodeChars();
+
+         drain();
+         if (error == null)
+         {
+            try
+            {
+               if (out != null)
+                  out.flush();
+            }
+            catch (IOException ex)
+            {
+               error = ex;
+            }
+         }
+      }
+
+      boolean checkError()
+      {
+         flush();
+         return error != null;
+      }
+
+      private void encodeInline(char ch)
+      {
+         if (BUFFER_SIZE - count < 4)
+            drain();
+
+         if (pendingHigh != 0)
+         {
+            char high = pendingHigh;
+            pendingHigh = 0;
+            if (Character.isLowSurrogate(ch))
+            {
+               if (encoding == UTF8)
+               {
+                  int cp = Character.toCodePoint(high, ch);
+                  bytes[count++] = (byte)(0xF0 | (cp >> 18));
+                  bytes[count++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                  bytes[count++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                  bytes[count++] = (byte)(0x80 | (cp & 0x3F));
+               }
+               else
+               {
+                  // A surrogate pair is a single unmappable character
+                  bytes[count++] = '?';
+               }
+               return;
+            }
+
+            // Malformed, the high surrogate is not followed by a low surrogate
+            bytes[count++] = '?';
+         }
+
+         if (Character.isHighSurrogate(ch))
+         {
+            pendingHigh = ch;
+         }
+         else if (Character.isLowSurrogate(ch))
+         {
+            bytes[count++] = '?';
+         }
+         else if (ch < 0x80)
+         {
+            bytes[count++] = (byte)ch;
+         }
+         else if (encoding == ASCII)
+         {
+            bytes[count++] = '?';
+         }
+         else if (encoding == LATIN1)
+         {
+            bytes[count++] = (byte)(ch < 0x100 ? ch : '?');
+         }
+         else if (ch < 0x800)
+         {
+            bytes[count++] = (byte)(0xC0 | (ch >> 6));
+            bytes[count++] = (byte)(0x80 | (ch & 0x3F));
+         }
+         else
+         {
+            bytes[count++] = (byte)(0xE0 | (ch >> 12));
+            bytes[count++] = (byte)(0x80 | ((ch >> 6) & 0x3F));
+            bytes[count++] = (byte)(0x80 | (ch & 0x3F));
+         }
+      }
+
+      // Encode the staged chars, a trailing high surrogate stays in the char buffer
+      private void encodeChars()
+      {
+         charBuffer.flip();
+         while (true)
+         {
+            byteBuffer.limit(BUFFER_SIZE);
+            byteBuffer.position(count);
+            CoderResult result = encoder.encode(charBuffer, byteBuffer, false);
+            count = byteBuffer.position();
+            if (result.isOverflow())
+               drain();
+            else
+               break;
+         }
+         charBuffer.compact();
+      }
+
+      private void drain()
+      {
+         if (count == 0)
+            return;
+
+         if (error == null)
+         {
+            try
+            {
+               if (out != null)
+               {
+                  out.write(bytes, 0, count);
+               }
+               else if (digest != null)
+               {
+                  digest.update(bytes, 0, count);
+               }
+               else
+               {
+                  byteBuffer.limit(count);
+                  byteBuffer.position(0);
+                  while (byteBuffer.hasRemaining())
+                     channel.write(byteBuffer);
+               }
+            }
+            catch (IOException ex)
+            {
+               error = ex;
+            }
+         }
+         count = 0;
+      }
+   }
+}